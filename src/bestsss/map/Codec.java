@@ -0,0 +1,135 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of the keys/values of {@link OffHeapCompactMap}. All the buffer access is absolute, the position of the buffers is never used.
+ * The keys are compared (and hashed) by their encoded bytes, so the key codec must be canonical - equal keys produce the same bytes.
+ *
+ * @param <T> the type of the encoded objects
+ * @author Stanimir Simeonoff
+ */
+public interface Codec<T> extends java.io.Serializable{
+    /**
+     * @return the length of every encoded value for fixed width codecs (no length is stored then), or -1 if the length varies
+     */
+    default int width(){
+        return -1;
+    }
+
+    /**
+     * @param value never null
+     * @return the encoded length in bytes, the same as {@link #width()} for fixed width codecs
+     */
+    int sizeOf(T value);
+
+    /**
+     * Writes exactly sizeOf(value) bytes at offset
+     */
+    void write(T value, ByteBuffer dst, int offset);
+
+    T read(ByteBuffer src, int offset, int length);
+
+    /** Big endian int, fixed width. */
+    @SuppressWarnings("unchecked")
+    static Codec<Integer> int32(){
+        return (Codec<Integer>) (Codec<?>) Preset.INT32;
+    }
+
+    /** Big endian long, fixed width. */
+    @SuppressWarnings("unchecked")
+    static Codec<Long> int64(){
+        return (Codec<Long>) (Codec<?>) Preset.INT64;
+    }
+
+    /** Strings, each char on its own as UTF-8 (i.e. CESU-8, surrogates are not paired); any string round trips as is. */
+    @SuppressWarnings("unchecked")
+    static Codec<String> utf8(){
+        return (Codec<String>) (Codec<?>) Preset.UTF8;
+    }
+
+    /** byte arrays as they are. */
+    @SuppressWarnings("unchecked")
+    static Codec<byte[]> bytes(){
+        return (Codec<byte[]>) (Codec<?>) Preset.BYTES;
+    }
+
+    enum Preset implements Codec<Object>{
+        INT32{
+            @Override public int width() {return 4;}
+            @Override public int sizeOf(Object value) {return 4;}
+            @Override public void write(Object value, ByteBuffer dst, int offset) {dst.putInt(offset, (Integer) value);}
+            @Override public Object read(ByteBuffer src, int offset, int length) {return src.getInt(offset);}
+        },
+        INT64{
+            @Override public int width() {return 8;}
+            @Override public int sizeOf(Object value) {return 8;}
+            @Override public void write(Object value, ByteBuffer dst, int offset) {dst.putLong(offset, (Long) value);}
+            @Override public Object read(ByteBuffer src, int offset, int length) {return src.getLong(offset);}
+        },
+        UTF8{
+            @Override
+            public int sizeOf(Object value) {
+                final String s = (String) value;
+                int n = 0;
+                for (int i=0, len=s.length(); i<len; i++){
+                    final char c = s.charAt(i);
+                    n += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+                }
+                return n;
+            }
+            @Override
+            public void write(Object value, ByteBuffer dst, int offset) {
+                final String s = (String) value;
+                for (int i=0, len=s.length(); i<len; i++){
+                    final char c = s.charAt(i);
+                    if (c < 0x80){
+                        dst.put(offset++, (byte) c);
+                    } else if (c < 0x800){
+                        dst.put(offset++, (byte) (0xC0 | c >> 6));
+                        dst.put(offset++, (byte) (0x80 | c & 0x3F));
+                    } else {
+                        dst.put(offset++, (byte) (0xE0 | c >> 12));
+                        dst.put(offset++, (byte) (0x80 | c >> 6 & 0x3F));
+                        dst.put(offset++, (byte) (0x80 | c & 0x3F));
+                    }
+                }
+            }
+            @Override
+            public Object read(ByteBuffer src, int offset, int length) {
+                final char[] chars = new char[length];
+                int n = 0;
+                for (final int end = offset + length; offset < end; ){
+                    final int b = src.get(offset++);
+                    if (b >= 0)
+                        chars[n++] = (char) b;
+                    else if ((b & 0xE0) == 0xC0)
+                        chars[n++] = (char) ((b & 0x1F) << 6 | src.get(offset++) & 0x3F);
+                    else
+                        chars[n++] = (char) ((b & 0x0F) << 12 | (src.get(offset++) & 0x3F) << 6 | src.get(offset++) & 0x3F);
+                }
+                return new String(chars, 0, n);
+            }
+        },
+        BYTES{
+            @Override public int sizeOf(Object value) {return ((byte[]) value).length;}
+            @Override
+            public void write(Object value, ByteBuffer dst, int offset) {
+                final ByteBuffer b = dst.duplicate();
+                b.position(offset);
+                b.put((byte[]) value);
+            }
+            @Override
+            public Object read(ByteBuffer src, int offset, int length) {
+                final ByteBuffer b = src.duplicate();
+                b.position(offset);
+                final byte[] result = new byte[length];
+                b.get(result);
+                return result;
+            }
+        };
+    }
+}
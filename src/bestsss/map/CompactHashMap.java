@@ -12,6 +12,7 @@ import java.util.*;
 * Fast and compact hash table. Open address/pow2 capacity, linear probe with fill factor of 1 for lower sizes and 66%-75% upwards.
 * The impl. does not use extra Node objects per element, nor stores hashCodes.  
 * Hence, the hash table performs best with key whose hash codes are well distributed and easy to calculate hashes. (String/Integer/Long, anything or cached hashCode)
+* For keys with expensive hashCode/equals, the hashes can be cached in a parallel int[], see {@link #setCacheHashes(boolean)}
 * Expected memory consumption for larger table is ~2.5 reference size per key/value entry (that's ~10.2bytes with compressed pointers on <32GB heaps)
 * 
 * In most cases CompactHashMap is a drop in replacement of HashMap with better memory footprint and possibly better performance under low collision scenarios.
@@ -26,22 +27,116 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
     private static final long serialVersionUID = 1L;
 
     private static final Object[] EMPTY = {};
+    private static final int[] NO_HASHES = {};
     private static final int MAXIMUM_CAPACITY = 1 << 29;
 
     private static final int C1 = 0xcc9e2d51;
     private static final int C2 = 0x1b873593;
 
-    private static int smear(int hashCode) {//"murmur3" smear; https://en.wikipedia.org/wiki/MurmurHash (see c1 and c2)
+    static int smear(int hashCode) {//"murmur3" smear; https://en.wikipedia.org/wiki/MurmurHash (see c1 and c2)
         return C2 * Integer.rotateLeft(hashCode * C1, 15);
     }
-    private static int hash(Object key, int len) {
-        return smear(key.hashCode()) & (len - 1) & ~1;//mask the for the key (always 0th bit has to be zero) {len - 2, should be ok}
+    @SuppressWarnings("unchecked")
+    private int spread(Object key) {
+        final HashingStrategy<Object> strategy = (HashingStrategy<Object>) this.strategy;
+        return smear(strategy == null ? key.hashCode() : strategy.hashCode(key));
+    }
+    private static int slot(int hash, int len) {
+        return hash & (len - 1) & ~1;//mask the for the key (always 0th bit has to be zero) {len - 2, should be ok}
+    }
+    private int hash(Object key, int len) {
+        return slot(spread(key), len);
+    }
+    /**
+     * @return the home slot of the entry at index i, the cached hash is used if available
+     */
+    private int home(Object[] tab, int i, int len, int[] hashes) {
+        return hashes == null ? hash(tab[i], len) : slot(hashes[i >> 1], len);
+    }
+    @SuppressWarnings("unchecked")
+    private boolean eq(Object k, Object item) {//k is never null
+        final HashingStrategy<Object> strategy = (HashingStrategy<Object>) this.strategy;
+        return k == item || (strategy == null ? k.equals(item) : item != null && strategy.equals(k, item));
     }
     //only 2 fields, no 'caching' for entrySet/keySet/etc.; the benefits are minuscule and better be created/dropped on each call, similar to iterators 
     transient int size = 0;
     transient Object[] table = EMPTY;//key at even pos, value at odd, no nulls
+    private boolean autoShrink;//fits in the object alignment, no extra footprint
+    private GrowthPolicy growth;//null for the default policy
+    private HashingStrategy<? super K> strategy;//null for the natural hashCode/equals
+    private boolean robinHood;//Robin Hood probing: the entries of each cluster are kept sorted by their hash (home slot)
+    private boolean cacheHashes;
+    transient int[] hashes;//smeared hash of the key at (index >> 1), if cacheHashes; null otherwise
+    private boolean compactSerialization;//type tagged String/Integer/Long/Double/Boolean entries; older streams read it as false
     
-    private static boolean needGrow(int len, int size){        
+    public CompactHashMap() {
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public CompactHashMap(int expectedSize) {
+        this(expectedSize, GrowthPolicy.Preset.DEFAULT);
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing, the table grows according to the policy
+     * @param expectedSize the expected number of mappings
+     * @param policy the fill factor policy
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public CompactHashMap(int expectedSize, GrowthPolicy policy) {
+        this(expectedSize, policy, null);
+    }
+
+    /**
+     * Creates a map that uses the strategy to hash and compare the keys, instead of their own hashCode/equals
+     * @param strategy the hashing strategy, e.g. {@link HashingStrategy#identity()}
+     */
+    public CompactHashMap(HashingStrategy<? super K> strategy) {
+        this(0, GrowthPolicy.Preset.DEFAULT, Objects.requireNonNull(strategy));
+    }
+
+    /**
+     * @param expectedSize the expected number of mappings
+     * @param policy the fill factor policy
+     * @param strategy the hashing strategy for the keys, null - use their own hashCode/equals
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public CompactHashMap(int expectedSize, GrowthPolicy policy, HashingStrategy<? super K> strategy) {
+        this.growth = Objects.requireNonNull(policy) == GrowthPolicy.Preset.DEFAULT ? null : policy;
+        this.strategy = strategy;
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (expectedSize > 0)
+            table = new Object[lengthFor(expectedSize)];
+    }
+
+    public CompactHashMap(Map<? extends K, ? extends V> m) {
+        putAll(m);
+    }
+
+    /**
+     * @return the strategy to hash and compare keys, null if the keys' own hashCode/equals are used
+     */
+    public HashingStrategy<? super K> getHashingStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return the policy (fill factor) used to grow the table
+     */
+    public GrowthPolicy getGrowthPolicy() {
+        return growth == null ? GrowthPolicy.Preset.DEFAULT : growth;
+    }
+
+    private static boolean needGrow(int len, int size, GrowthPolicy growth){//null policy is the default curve, no megamorphic call
+        return growth == null ? needGrow(len, size) : len < size << 1 || growth.needGrow(len >> 1, size);
+    }
+
+    static boolean needGrow(int len, int size){        
         if (len <= 32)//less than 16 elements 
             return len >> 1 < size;
         if (len <= 128)//less than 64 (~40) elements 
@@ -53,6 +148,8 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
     public V put(K key, V value) {
         final Object k = Objects.requireNonNull(key);//null checks, we do not support null
         Objects.requireNonNull(value);
+        if (robinHood || cacheHashes)
+            return putSlow(k, value);
         
         for (;;) {
             final Object[] tab = table;
@@ -66,7 +163,7 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             int i = hash(k, len);
             final int start=i;
             for (Object item; (item = tab[i]) != null; ) {
-                if (k==item || k.equals(item)) {
+                if (eq(k, item)) {
                     @SuppressWarnings("unchecked")
                     V result = (V) tab[i + 1];
                     if (result != value)
@@ -79,7 +176,7 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             }
 
             final int s = size + 1;
-            if (needGrow(len, s) && resize(len))
+            if (needGrow(len, s, growth) && resize(len))
                 continue;//resized, try again
 
             tab[i] = k;
@@ -96,25 +193,263 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
         final int len = tab.length;
         if (len==0)
             return null;
+        if (robinHood || cacheHashes){
+            final int i = indexOf(k, spread(k), tab, len);
+            return i < 0 ? null : removeAt(i, tab);
+        }
 
         for (int i = hash(k, len), start=i;;) {
             Object item = tab[i];
-            if (k==item || k.equals(item)) {
-                size--;
-                tab[i] = null;
-                
-                @SuppressWarnings("unchecked")
-                V oldValue = (V) tab[i + 1];
-                tab[i + 1] = null;
-                
-                closeDeletion(i, tab, len);
-                return oldValue;
+            if (eq(k, item)) {
+                return removeAt(i, tab);
             }
             if (item == null || start == (i = nextKeyIndex(i, len)))
                 return null;
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private V removeAt(int i, Object[] tab) {
+        size--;
+        tab[i] = null;
+        V oldValue = (V) tab[i + 1];
+        tab[i + 1] = null;
+
+        closeDeletion(i, tab, tab.length);
+        if (autoShrink)
+            shrink();
+        return oldValue;
+    }
+
+    /**
+     * Single probe for the compute family.
+     * @return the index of the key, if present; otherwise the complement (~) of the free slot the key should go to
+     */
+    private int indexOf(Object k, int h, Object[] tab, int len) {
+        final int[] hashes = this.hashes;
+        if (robinHood)
+            return robinHoodIndexOf(k, h, tab, len, hashes);
+        for (int i = slot(h, len), start=i;;) {
+            Object item = tab[i];
+            if (item == null)
+                return ~i;
+            if ((hashes == null || hashes[i >> 1] == h) && eq(k, item))//cached hashes are compared prior equals
+                return i;
+            if (start == (i = nextKeyIndex(i, len)))//full table, needGrow ensures resize prior the insert
+                return ~i;
+        }
+    }
+
+    /**
+     * Robin Hood probe: a miss stops as soon as the probe distance exceeds the distance of the resident entry to its home slot, 
+     * since the key would have displaced that entry.
+     * @return the index of the key, if present; otherwise the complement (~) of the slot the key should be inserted at (possibly occupied)
+     */
+    private int robinHoodIndexOf(Object k, int hash, Object[] tab, int len, int[] hashes) {
+        final int mask = len - 1, h = slot(hash, len);
+        for (int i = h;;) {
+            Object item = tab[i];
+            if (item == null)
+                return ~i;
+            if ((hashes == null || hashes[i >> 1] == hash) && eq(k, item))
+                return i;
+            if (i != h && ((i - home(tab, i, len, hashes)) & mask) < ((i - h) & mask))
+                return ~i;
+            if (h == (i = nextKeyIndex(i, len)))//full table
+                return ~i;
+        }
+    }
+
+    /**
+     * Inserts the mapping at i, shifting the following entries of the cluster by one slot (Robin Hood displacement); 
+     * the table must have a free slot.
+     */
+    private static void insertAt(int i, Object k, int h, Object value, Object[] tab, int[] hashes) {
+        for (final int len = tab.length;;){
+            Object nextKey = tab[i], nextValue = tab[i + 1];
+            tab[i] = k;
+            tab[i + 1] = value;
+            if (hashes != null){
+                int nextHash = hashes[i >> 1];
+                hashes[i >> 1] = h;
+                h = nextHash;
+            }
+            if (nextKey == null)
+                return;
+            k = nextKey;
+            value = nextValue;
+            i = nextKeyIndex(i, len);
+        }
+    }
+
+    /**
+     * Put for Robin Hood probing and/or cached hashes
+     */
+    @SuppressWarnings("unchecked")
+    private V putSlow(Object k, V value) {
+        final Object[] tab = table;
+        final int len = tab.length, h = spread(k);
+        final int i = len == 0 ? ~0 : indexOf(k, h, tab, len);
+        if (i >= 0){
+            V result = (V) tab[i + 1];
+            tab[i + 1] = value;
+            return result;
+        }
+        addAt(~i, k, h, value, tab, size);
+        return null;
+    }
+
+    /**
+     * Switches Robin Hood probing on/off. Robin Hood probing keeps the entries of each cluster sorted by their home slot,
+     * so the variance of the probe length is lower and a miss stops early - once it passes the slot the key would have been at. 
+     * The price is re-hashing the resident entries during the probes (to find their home slot), and shifting entries upon insertion.
+     * Switching rehashes the table.
+     */
+    public void setRobinHood(boolean robinHood) {
+        if (this.robinHood == robinHood)
+            return;
+        this.robinHood = robinHood;
+        if (size > 0)
+            rehash(table, table.length);
+    }
+
+    public boolean isRobinHood() {
+        return robinHood;
+    }
+
+    /**
+     * Adds a new mapping to the free slot found by {@link #indexOf(Object, int, Object[], int)}.
+     * If the map has been modified meanwhile (i.e. by the mapping function), it falls back to a regular put
+     */
+    @SuppressWarnings("unchecked")
+    private void addAt(int i, Object k, int h, Object value, Object[] tab, int expectedSize) {
+        final int len = tab.length;
+        if (tab != table || size != expectedSize){
+            put((K) k, (V) value);
+            return;
+        }
+        if (len == 0){
+            this.table = new Object[]{k, value};
+            if (cacheHashes)
+                this.hashes = new int[]{h};
+            size = 1;
+            return;
+        }
+        final int s = size + 1;
+        if (needGrow(len, s, growth) && resize(len)){
+            tab = table;
+            i = ~indexOf(k, h, tab, tab.length);
+        }
+        insertAt(i, k, h, value, tab, hashes);
+        size = s;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void replaceAt(int i, Object k, Object value, Object[] tab) {
+        if (tab == table && tab[i] == k)
+            tab[i + 1] = value;
+        else
+            put((K) k, (V) value);
+    }
+
+    private void removeAt(int i, Object k, Object[] tab) {
+        if (tab == table && tab[i] == k)
+            removeAt(i, tab);
+        else
+            remove(k);
+    }
+
+    //the compute family - the key is probed once, then the value is updated/added/removed in place
+    @SuppressWarnings("unchecked")
+    @Override
+    public V computeIfAbsent(K key, java.util.function.Function<? super K, ? extends V> mappingFunction) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(mappingFunction);
+        final Object[] tab = table;
+        final int len = tab.length;
+        final int h = spread(k);
+        final int i = len == 0 ? ~0 : indexOf(k, h, tab, len);
+        if (i >= 0)
+            return (V) tab[i + 1];
+
+        final int s = size;
+        final V value = mappingFunction.apply(key);
+        if (value != null)
+            addAt(~i, k, h, value, tab, s);
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V computeIfPresent(K key, java.util.function.BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(remappingFunction);
+        final Object[] tab = table;
+        final int len = tab.length;
+        final int h = spread(k);
+        final int i = len == 0 ? ~0 : indexOf(k, h, tab, len);
+        if (i < 0)
+            return null;
+
+        final Object item = tab[i];
+        final V value = remappingFunction.apply(key, (V) tab[i + 1]);
+        if (value == null)
+            removeAt(i, item, tab);
+        else
+            replaceAt(i, item, value, tab);
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V compute(K key, java.util.function.BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(remappingFunction);
+        final Object[] tab = table;
+        final int len = tab.length;
+        final int h = spread(k);
+        final int i = len == 0 ? ~0 : indexOf(k, h, tab, len);
+        if (i < 0){
+            final int s = size;
+            final V value = remappingFunction.apply(key, null);
+            if (value != null)
+                addAt(~i, k, h, value, tab, s);
+            return value;
+        }
+
+        final Object item = tab[i];
+        final V value = remappingFunction.apply(key, (V) tab[i + 1]);
+        if (value == null)
+            removeAt(i, item, tab);
+        else
+            replaceAt(i, item, value, tab);
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V merge(K key, V value, java.util.function.BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        final Object[] tab = table;
+        final int len = tab.length;
+        final int h = spread(k);
+        final int i = len == 0 ? ~0 : indexOf(k, h, tab, len);
+        if (i < 0){
+            addAt(~i, k, h, value, tab, size);
+            return value;
+        }
+
+        final Object item = tab[i];
+        final V result = remappingFunction.apply((V) tab[i + 1], value);
+        if (result == null)
+            removeAt(i, item, tab);
+        else
+            replaceAt(i, item, result, tab);
+        return result;
+    }
+
     /**
      * Rehash all possibly-colliding entries following a
      * deletion. This preserves the linear-probe
@@ -122,18 +457,30 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
      *
      * @param del the index of a newly empty deleted slot
      */
-    private static void closeDeletion(int del, Object[] tab , int len) {
+    private void closeDeletion(int del, Object[] tab , int len) {
+        closeDeletion(del, tab, len, null);
+    }
+
+    /**
+     * @param traverser if not null, gets notified of the entries moved from the front of the table to its tail (wrapped clusters)
+     */
+    private void closeDeletion(int del, Object[] tab , int len, Traverser traverser) {
         // Adapted from Knuth Section 6.4 Algorithm R       
 
+        final int[] hashes = this.hashes;
         Object item;
         
         for (int i = nextKeyIndex(del, len); (item = tab[i]) != null;
              i = nextKeyIndex(i, len) ) {//guaranteed to have at least one null, so no need to loop the loop
 
-            int hash = hash(item, len);
+            int hash = home(tab, i, len, hashes);
             if ((i < hash && (hash <= del || del <= i)) || (hash <= del && del <= i)) {
+                if (i < del && traverser != null)
+                    traverser.wrapped(item);
                 tab[del] = item;
                 tab[del + 1] = tab[i + 1];
+                if (hashes != null)
+                    hashes[del >> 1] = hashes[i >> 1];
                 tab[i] = null;//mark end of chain
                 tab[i + 1] = null;
                 del = i;
@@ -160,7 +507,15 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
         if (oldLength >= newLength)
             return false;
 
-        Object[] newTable = new Object[newLength];
+        rehash(oldTable, newLength);
+        return true;
+    }
+
+    private void rehash(Object[] oldTable, int newLength) {
+        final int oldLength = oldTable.length;
+        final Object[] newTable = new Object[newLength];
+        final int[] oldHashes = cacheHashes ? hashes : null;
+        final int[] newHashes = cacheHashes ? new int[newLength >> 1] : null;
 
         for (int j = 0; j < oldLength; j += 2) {
             Object key = oldTable[j];
@@ -168,15 +523,146 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
                 Object value = oldTable[j+1];
                 oldTable[j] = null;
                 oldTable[j+1] = null;
-                int i = hash(key, newLength);
-                while (newTable[i] != null)
-                    i = nextKeyIndex(i, newLength);
-                newTable[i] = key;
-                newTable[i + 1] = value;
+                place(key, oldHashes == null ? spread(key) : oldHashes[j >> 1], value, newTable, newHashes);//no hashCode() with cached hashes
             }
         }
         table = newTable;
-        return true;
+        hashes = newHashes;
+    }
+
+    /**
+     * Trusted insert of a key known to be absent from the table, and a table known to have room for it: no equals, no growth check,
+     * just hash-and-probe-to-null. Used by rehash and the bulk loads (deserialization, putAll to an empty map).
+     */
+    private void place(Object key, int hash, Object value, Object[] tab, int[] hashes) {
+        final int len = tab.length;
+        int i = slot(hash, len);
+        if (robinHood){//just find the 1st entry closer to its home
+            final int h = i, mask = len - 1;
+            while (tab[i] != null && (i == h || ((i - home(tab, i, len, hashes)) & mask) >= ((i - h) & mask)))
+                i = nextKeyIndex(i, len);
+            insertAt(i, key, hash, value, tab, hashes);
+            return;
+        }
+        while (tab[i] != null)
+            i = nextKeyIndex(i, len);
+        tab[i] = key;
+        tab[i + 1] = value;
+        if (hashes != null)
+            hashes[i >> 1] = hash;
+    }
+
+    private void releaseTable() {
+        table = EMPTY;
+        hashes = cacheHashes ? NO_HASHES : null;
+    }
+
+    /**
+     * Caches the (smeared) hash codes of the keys in a parallel int[]. Probes compare the hashes prior calling equals, 
+     * and resizing/removals do not call hashCode at all. Intended for keys with expensive hashCode/equals, 
+     * the extra memory is one int per key slot. Switching it on computes the hashes of the present keys.
+     */
+    public void setCacheHashes(boolean cacheHashes) {
+        if (this.cacheHashes == cacheHashes)
+            return;
+        this.cacheHashes = cacheHashes;
+        if (!cacheHashes){
+            hashes = null;
+            return;
+        }
+        final Object[] tab = table;
+        final int[] hashes = tab.length == 0 ? NO_HASHES : new int[tab.length >> 1];
+        for (int i=0; i<tab.length; i+=2){
+            if (tab[i] != null)
+                hashes[i >> 1] = spread(tab[i]);
+        }
+        this.hashes = hashes;
+    }
+
+    public boolean isCacheHashes() {
+        return cacheHashes;
+    }
+
+    /**
+     * Selects a compact serialized form: the String (up to 21845 chars), Integer, Long, Double and Boolean keys/values are written 
+     * via writeUTF, varints, writeDouble/writeBoolean, i.e. no object headers and back-reference bookkeeping; anything else goes through writeObject as usual.
+     * The type tag is written once for all the keys (values) of the same type, per key (value) otherwise. 
+     * Note: repeated (identical) strings are written in full each time.
+     * The setting is serialized along with the map, the reading side needs no configuration.
+     */
+    public void setCompactSerialization(boolean compactSerialization) {
+        this.compactSerialization = compactSerialization;
+    }
+
+    public boolean isCompactSerialization() {
+        return compactSerialization;
+    }
+
+    /**
+     * Grows the table (if needed) to hold expectedSize elements without further resizing
+     */
+    public void ensureCapacity(int expectedSize) {
+        final Object[] tab = table;
+        final int len = lengthFor(expectedSize);
+        if (len <= tab.length)
+            return;
+        if (tab.length == 0){
+            table = new Object[len];
+            if (cacheHashes)
+                hashes = new int[len >> 1];
+        } else{
+            rehash(tab, len);
+        }
+    }
+
+    /**
+     * Shrinks the table to the smallest length that does not need to grow for the current size; an empty map releases the table altogether.
+     * Note: the existing iterators/cursors are not updated, i.e. they would not see the elements. 
+     */
+    public void trimToSize() {
+        if (size == 0){
+            releaseTable();
+            return;
+        }
+        final int len = lengthFor(size);
+        if (len < table.length)
+            rehash(table, len);
+    }
+
+    /**
+     * @param autoShrink if true, the table is halved upon removals once it is 4 times larger than needed, 
+     * i.e. it'd take doubling the size to grow it again (hysteresis). Removals via iterators/cursors do not shrink the table. 
+     */
+    public void setAutoShrink(boolean autoShrink) {
+        this.autoShrink = autoShrink;
+    }
+
+    public boolean isAutoShrink() {
+        return autoShrink;
+    }
+
+    private boolean needShrink(int len, int size){
+        return len > 32 && !needGrow(len >> 2, size, growth);
+    }
+
+    private void shrink() {
+        final Object[] tab = table;
+        final int len = tab.length;
+        if (size == 0)
+            releaseTable();
+        else if (needShrink(len, size))
+            rehash(tab, Math.max(lengthFor(size) << 1, 32));//keep the hysteresis even after mass removals
+    }
+
+    /**
+     * @return the smallest table length (capacity * 2) that holds size elements without growing
+     */
+    private int lengthFor(int size) {
+        final GrowthPolicy growth = this.growth;
+        int len = 2;
+        while (len < 2 * MAXIMUM_CAPACITY && needGrow(len, size, growth))
+            len <<= 1;
+        return len;
     }   
     
     @SuppressWarnings("unchecked")
@@ -186,10 +672,14 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
         final int len = tab.length;
         if (len == 0)
             return null;
+        if (robinHood || cacheHashes){
+            final int i = indexOf(k, spread(k), tab, len);
+            return i < 0 ? null : (V) tab[i + 1];
+        }
 
         for(int i = hash(k, len), start=i;;){//get on closed table is super simple, except for overloop due to lack of null
             Object item = tab[i];
-            if (k==item || k.equals(item))
+            if (eq(k, item))
                 return (V) tab[i + 1];
             
             if (item == null || start == (i=nextKeyIndex(i, len)))
@@ -226,12 +716,28 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             CompactHashMap<?, ?> map = (CompactHashMap<?,?>) m;
             final Object[] tab = map.table; 
             if (this.table == EMPTY && map.size() > 2){
-                if (tab.length /4 < map.size()){//super fast putAll for empty map, m has reasonable fill, copy it all
+                if (tab.length /4 < map.size() && map.strategy == strategy && map.robinHood == robinHood && map.cacheHashes == cacheHashes){//super fast putAll for empty map, m has reasonable fill, copy it all
                     this.table = tab.clone();
+                    if (cacheHashes)
+                        this.hashes = map.hashes.clone();
                     this.size = m.size();
                     return;
                 }
-                resize(Integer.highestOneBit(m.size()-1)<<1);
+                if (map.strategy == strategy){//the same equality, the keys are distinct: bulk load
+                    final int size = map.size;
+                    final Object[] newTable = new Object[lengthFor(size)];
+                    final int[] newHashes = cacheHashes ? new int[newTable.length >> 1] : null;
+                    final int[] hashes = map.hashes;//the same strategy, the same hashes
+                    for (int i=0; i<tab.length; i+=2){
+                        if (tab[i]!=null)
+                            place(tab[i], hashes == null ? spread(tab[i]) : hashes[i >> 1], tab[i+1], newTable, newHashes);
+                    }
+                    this.table = newTable;
+                    this.hashes = newHashes;
+                    this.size = size;
+                    return;
+                }
+                ensureCapacity(m.size());
             }
             for (int i=0; i<tab.length; i+=2){//fast iterate/put, skip regular iterators
                 if (tab[i]!=null)
@@ -240,22 +746,286 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             return;
         }
         //other map
-        if (this.table == EMPTY && m.size() > 2){//attempt resize
-            resize(Integer.highestOneBit(m.size()-1)<<1);
+        if (this.table == EMPTY && m.size() > 2){
+            if (strategy == null && (m.getClass() == HashMap.class || m.getClass() == LinkedHashMap.class)){//keys distinct as per equals: bulk load
+                final int size = m.size();
+                final Object[] newTable = new Object[lengthFor(size)];
+                final int[] newHashes = cacheHashes ? new int[newTable.length >> 1] : null;
+                for (Map.Entry<? extends K, ? extends V> e : m.entrySet()){
+                    final Object k = Objects.requireNonNull(e.getKey());
+                    place(k, spread(k), Objects.requireNonNull(e.getValue()), newTable, newHashes);
+                }
+                this.table = newTable;//published once complete, a null key/value leaves the map empty
+                this.hashes = newHashes;
+                this.size = size;
+                return;
+            }
+            ensureCapacity(m.size());//attempt resize
         }
         //regular put loop
         for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
             put(e.getKey(), e.getValue());
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        final Object[] tab = table;
+        for (int i=0; i<tab.length; i+=2){//direct scan, no entries
+            Object k = tab[i];
+            if (k != null)
+                action.accept((K) k, (V) tab[i+1]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void replaceAll(java.util.function.BiFunction<? super K, ? super V, ? extends V> function) {
+        Objects.requireNonNull(function);
+        final Object[] tab = table;
+        for (int i=0; i<tab.length; i+=2){
+            Object k = tab[i];
+            if (k != null){
+                V value = Objects.requireNonNull(function.apply((K) k, (V) tab[i+1]));
+                if (tab == table && tab[i] == k)//in place, unless the function has resized the map or moved the key (removal)
+                    tab[i+1] = value;
+                else
+                    put((K) k, value);
+            }
+        }
+    }
+
+    //ConcurrentHashMap-like bulk operations; the map must not be modified while a parallel operation is running
+    /**
+     * Performs the action for each mapping, in parallel if the size of the map is at least parallelismThreshold. 
+     * The map must not be modified during the operation.
+     * @param parallelismThreshold the (estimated) number of elements needed for this operation to be executed in parallel; Long.MAX_VALUE - never
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(long parallelismThreshold, java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        bulk(parallelismThreshold, (tab, lo, hi) -> {
+            for (int i=lo; i<hi; i+=2){
+                Object k = tab[i];
+                if (k != null)
+                    action.accept((K) k, (V) tab[i+1]);
+            }
+            return null;
+        }, (a, b) -> null);
+    }
+
+    /**
+     * Returns a non-null result of the searchFunction applied on any mapping, or null if none. Upon success, further element processing is suppressed.
+     * The map must not be modified during the operation.
+     * @param parallelismThreshold the (estimated) number of elements needed for this operation to be executed in parallel; Long.MAX_VALUE - never
+     */
+    @SuppressWarnings("unchecked")
+    public <U> U search(long parallelismThreshold, java.util.function.BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        Objects.requireNonNull(searchFunction);
+        final java.util.concurrent.atomic.AtomicReference<U> result = new java.util.concurrent.atomic.AtomicReference<>();
+        bulk(parallelismThreshold, (tab, lo, hi) -> {
+            for (int i=lo; i<hi && result.get() == null; i+=2){
+                Object k = tab[i];
+                U u;
+                if (k != null && (u = searchFunction.apply((K) k, (V) tab[i+1])) != null){
+                    result.compareAndSet(null, u);
+                    break;
+                }
+            }
+            return null;
+        }, (a, b) -> null);
+        return result.get();
+    }
+
+    /**
+     * Returns the result of accumulating all values using the given reducer to combine values, or null if none.
+     * The map must not be modified during the operation.
+     * @param parallelismThreshold the (estimated) number of elements needed for this operation to be executed in parallel; Long.MAX_VALUE - never
+     * @param reducer a commutative associative combining function
+     */
+    @SuppressWarnings("unchecked")
+    public V reduceValues(long parallelismThreshold, java.util.function.BiFunction<? super V, ? super V, ? extends V> reducer) {
+        Objects.requireNonNull(reducer);
+        final java.util.function.BinaryOperator<V> merge = (a, b) -> a == null ? b : b == null ? a : reducer.apply(a, b);
+        return bulk(parallelismThreshold, (tab, lo, hi) -> {
+            V r = null;
+            for (int i=lo; i<hi; i+=2){
+                if (tab[i] != null)
+                    r = merge.apply(r, (V) tab[i+1]);
+            }
+            return r;
+        }, merge);
+    }
+
+    /**
+     * Returns the result of accumulating all entries using the given reducer to combine values, or null if none.
+     * The entries are immutable; the map must not be modified during the operation.
+     * @param parallelismThreshold the (estimated) number of elements needed for this operation to be executed in parallel; Long.MAX_VALUE - never
+     * @param reducer a commutative associative combining function
+     */
+    @SuppressWarnings("unchecked")
+    public Map.Entry<K, V> reduceEntries(long parallelismThreshold, java.util.function.BiFunction<Map.Entry<K, V>, Map.Entry<K, V>, ? extends Map.Entry<K, V>> reducer) {
+        Objects.requireNonNull(reducer);
+        final java.util.function.BinaryOperator<Map.Entry<K, V>> merge = (a, b) -> a == null ? b : b == null ? a : reducer.apply(a, b);
+        return bulk(parallelismThreshold, (tab, lo, hi) -> {
+            Map.Entry<K, V> r = null;
+            for (int i=lo; i<hi; i+=2){
+                Object k = tab[i];
+                if (k != null)
+                    r = merge.apply(r, new AbstractMap.SimpleImmutableEntry<>((K) k, (V) tab[i+1]));
+            }
+            return r;
+        }, merge);
+    }
+
+    private <R> R bulk(long parallelismThreshold, RangeTask.Scan<R> scan, java.util.function.BinaryOperator<R> merge) {
+        final Object[] tab = table;
+        final int batch = batchFor(parallelismThreshold);
+        if (batch <= 1)
+            return scan.apply(tab, 0, tab.length);
+        return new RangeTask<>(tab, 0, tab.length, batch, scan, merge).invoke();
+    }
+
+    /**
+     * Computes the number of batches (ConcurrentHashMap style) for the given threshold; 0 or 1 - sequential. 
+     */
+    private int batchFor(long parallelismThreshold) {
+        long n = size;
+        if (parallelismThreshold == Long.MAX_VALUE || n <= 1L || n < parallelismThreshold)
+            return 0;
+        final int sp = java.util.concurrent.ForkJoinPool.getCommonPoolParallelism() << 2;//slack of 4
+        return (parallelismThreshold <= 0L || (n /= parallelismThreshold) >= sp) ? sp : (int) n;
+    }
+
+    /**
+     * Fork/join task over an index range of the table, splits in halves (on key boundaries) until the batch is exhausted
+     */
+    private static final class RangeTask<R> extends java.util.concurrent.RecursiveTask<R>{
+        private static final long serialVersionUID = 1L;
+
+        interface Scan<R>{
+            R apply(Object[] tab, int lo, int hi);
+        }
+
+        final transient Object[] tab;
+        final int lo, hi, batch;
+        final transient Scan<R> scan;
+        final transient java.util.function.BinaryOperator<R> merge;
+
+        RangeTask(Object[] tab, int lo, int hi, int batch, Scan<R> scan, java.util.function.BinaryOperator<R> merge){
+            this.tab = tab;
+            this.lo = lo;
+            this.hi = hi;
+            this.batch = batch;
+            this.scan = scan;
+            this.merge = merge;
+        }
+
+        @Override
+        protected R compute() {
+            final int mid = ((lo + hi) >>> 1) & ~1;
+            if (batch <= 1 || mid <= lo)
+                return scan.apply(tab, lo, hi);
+
+            RangeTask<R> right = new RangeTask<>(tab, mid, hi, batch >>> 1, scan, merge);
+            right.fork();
+            R left = new RangeTask<>(tab, lo, mid, batch >>> 1, scan, merge).compute();
+            return merge.apply(left, right.join());
+        }
+    }
+
+    /**
+     * Bulk removal in a single pass: the matching entries are cleared and the entries following the holes are re-placed, 
+     * i.e. probed from their hash to the first free slot. Unlike repeated remove/closeDeletion, each entry is moved at most once.
+     * The pass starts past a free slot (a cluster boundary) and walks the entire table around, so the re-placed entries never precede
+     * a slot that is yet to be processed. Should the filter throw, the holes are still closed prior propagating the exception.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean removeIf(java.util.function.BiPredicate<? super K, ? super V> filter) {
+        final Object[] tab = table;
+        final int len = tab.length;
+        int start = 0;
+        while (start < len && tab[start] != null)
+            start += 2;
+
+        if (start >= len){//full table (small ones by default, any size with a custom GrowthPolicy); no boundary to start from
+            boolean removed = false;
+            for (Cursor c = new Cursor(); c.advance(); ){
+                if (filter.test(c.key(), c.value())){
+                    c.remove();
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+
+        int removed = 0;
+        RuntimeException failure = null;
+        boolean dirty = false;//a hole precedes the current slot within the cluster
+        for (int i = nextKeyIndex(start, len); i != start; i = nextKeyIndex(i, len)){
+            final Object k = tab[i];
+            if (k == null){
+                if (failure != null)
+                    break;
+                dirty = false;
+                continue;
+            }
+            if (failure == null){
+                boolean match;
+                try{
+                    match = filter.test((K) k, (V) tab[i+1]);
+                }catch (RuntimeException _ex) {
+                    failure = _ex;
+                    match = false;
+                }
+                if (match){
+                    tab[i] = null;
+                    tab[i + 1] = null;
+                    removed++;
+                    dirty = true;
+                    continue;
+                }
+            }
+            if (dirty){
+                int h = home(tab, i, len, hashes);
+                while (h != i && tab[h] != null)
+                    h = nextKeyIndex(h, len);
+                if (h != i){
+                    tab[h] = k;
+                    tab[h + 1] = tab[i + 1];
+                    tab[i] = null;
+                    tab[i + 1] = null;
+                    if (hashes != null)
+                        hashes[h >> 1] = hashes[i >> 1];
+                }
+            }
+        }
+        size -= removed;
+        if (autoShrink)
+            shrink();
+        if (failure != null)
+            throw failure;
+        return removed > 0;
+    }
+
     @Override
     public void clear() {
-        table = EMPTY;
+        releaseTable();
         size = 0;
     }
+    @SuppressWarnings("unchecked")
     public int hashCode(){
         Object[] tab = table;
         int h = 0;
+        if (strategy != null){//keys hashed as per the strategy, so the hash is consistent with equals
+            final HashingStrategy<Object> strategy = (HashingStrategy<Object>) this.strategy;
+            for (int i=0; i<tab.length; i+=2){
+                if (tab[i] != null)
+                    h+=strategy.hashCode(tab[i]) ^ tab[i+1].hashCode();
+            }
+            return h;
+        }
         for (int i=0; i<tab.length;){//need stable hash; regardless positions/deletions/etc.
             h+=Objects.hashCode(tab[i++]) ^ Objects.hashCode(tab[i++]);
         }
@@ -276,7 +1046,7 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
         
         try {
             int i=0;
-            if (m instanceof CompactHashMap){
+            if (m instanceof CompactHashMap && ((CompactHashMap<?, ?>) m).strategy == strategy){
                 i = Math.max(0, nextDiff((CompactHashMap<?, ?>) m));
             }
             
@@ -302,7 +1072,7 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             if (k==null)
                 continue;
             Object o,v;
-            if ((k!=(o=other[i]) && !k.equals(o)) || ((v=tab[i+1])!=(o=other[i+1]) && !v.equals(o))){                
+            if (!eq(k, o=other[i]) || ((v=tab[i+1])!=(o=other[i+1]) && !v.equals(o))){                
                 return i;//preserve progress
             }
         }
@@ -332,14 +1102,24 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
         try{
             @SuppressWarnings("unchecked")
             CompactHashMap<K,V>  m = (CompactHashMap<K, V>) super.clone();
-            if (m.table != EMPTY)
+            if (m.table != EMPTY){
                 m.table = m.table.clone();
+                if (m.hashes != null)
+                    m.hashes = m.hashes.clone();
+            }
             return m;
         }catch (CloneNotSupportedException _ex) {
             throw new AssertionError();
         }
     }
-    
+
+    /**
+     * @return an immutable copy of this map, laid out for the shortest probes (the same hashing strategy), see {@link ImmutableCompactMap}
+     */
+    public ImmutableCompactMap<K, V> freeze(){
+        return ImmutableCompactMap.copyOf(this, strategy);
+    }
+
     @Override
     public Set<K> keySet() {
         return new KSet();
@@ -357,6 +1137,11 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             public Iterator<java.util.Map.Entry<K, V>> iterator() {
                 return new EntryIter();
             }
+
+            @Override
+            public Spliterator<Map.Entry<K, V>> spliterator() {
+                return new EntrySpliterator(null, 0, -1, 0);
+            }
             
             @Override
             public boolean contains(Object o) {
@@ -376,6 +1161,22 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             }
 
             
+            @Override
+            public boolean removeIf(java.util.function.Predicate<? super Map.Entry<K, V>> filter) {
+                Objects.requireNonNull(filter);
+                return CompactHashMap.this.removeIf((k, v) -> filter.test(new AbstractMap.SimpleImmutableEntry<>(k, v)));
+            }
+            @Override
+            public boolean removeAll(Collection<?> c) {
+                Objects.requireNonNull(c);
+                return CompactHashMap.this.removeIf((k, v) -> c.contains(new AbstractMap.SimpleImmutableEntry<>(k, v)));
+            }
+            @Override
+            public boolean retainAll(Collection<?> c) {
+                Objects.requireNonNull(c);
+                return CompactHashMap.this.removeIf((k, v) -> !c.contains(new AbstractMap.SimpleImmutableEntry<>(k, v)));
+            }
+
             @Override public int hashCode() {return CompactHashMap.this.hashCode();}//equals left to super class
             @Override public void clear() {CompactHashMap.this.clear();}
             @Override public int size() {return CompactHashMap.this.size();}
@@ -393,6 +1194,10 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             return new KVIteraor<>(key);
         }
         @Override
+        public Spliterator<E> spliterator() {
+            return new KVSpliterator<>(null, 0, -1, 0, key?0:1);
+        }
+        @Override
         public int hashCode(){
             Object[] tab = table;
             int h = 0;
@@ -423,6 +1228,23 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             return true;
         }
         
+        @SuppressWarnings("unchecked")
+        @Override
+        public boolean removeIf(java.util.function.Predicate<? super E> filter) {
+            Objects.requireNonNull(filter);
+            return key ? CompactHashMap.this.removeIf((k, v) -> filter.test((E) k)) : CompactHashMap.this.removeIf((k, v) -> filter.test((E) v));
+        }
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            Objects.requireNonNull(c);
+            return removeIf(c::contains);
+        }
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            Objects.requireNonNull(c);
+            return removeIf(e -> !c.contains(e));
+        }
+
         @Override public void clear() {CompactHashMap.this.clear();}    
         @Override public int size() {return CompactHashMap.this.size();}
         @Override public boolean isEmpty() {return CompactHashMap.this.isEmpty();}        
@@ -446,70 +1268,315 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
         }
     }
     
-    private abstract class BasicIter<E> implements Iterator<E>{
+    /**
+     * Returns a reusable cursor over the mappings; no objects are created per step. 
+     * Removal through the cursor is performed in place (no copy of the table).
+     */
+    public MapCursor<K, V> cursor(){
+        return new Cursor();
+    }
+
+    /**
+     * Index walk over the table that supports removal of the current entry in place.
+     * The backward shift in closeDeletion moves entries only towards lower indexes, so the walk just resumes at the removed index.
+     * The only exception is a cluster that wraps around the end of the table - the entries at its front have been visited already, 
+     * yet they may move to the tail. Such keys are remembered and skipped till the end of the walk.
+     */
+    private abstract class Traverser{
         Object[] tab = table;
-        int idx = size > 0?0: ~0;//when the hashtable is empty, position the index beyond (~0 & MAX_VALUE == MAX_VALUE) 
+        int current = -1;//index of the current entry, negative if none
+        int next = seek(0);//index of the next entry, tab.length when exhausted
+        Object[] wrapped;//keys moved from the front to the tail of the table
+        int wrappedCount;
+
+        final int seek(int i){
+            final Object[] tab = this.tab;
+            for (Object k; i < tab.length; i+=2){
+                if ((k = tab[i]) != null && (wrappedCount == 0 || !skip(k)))
+                    break;
+            }
+            return i;
+        }
+
+        private boolean skip(Object k){//kept for the entire walk: a later removal may shift the key back to a slot ahead
+            final Object[] w = wrapped;
+            for (int i=0; i<wrappedCount; i++){
+                if (w[i] == k)
+                    return true;
+            }
+            return false;
+        }
+
+        final void wrapped(Object k){
+            if (wrapped == null)
+                wrapped = new Object[4];
+            else if (wrappedCount == wrapped.length)
+                wrapped = Arrays.copyOf(wrapped, wrappedCount * 2);
+            wrapped[wrappedCount++] = k;
+        }
+
+        final int nextIdx(){
+            final int i = next;
+            if (i >= tab.length)
+                throw new NoSuchElementException();
+            next = seek(i + 2);
+            return current = i;
+        }
+
+        final int currentIdx(){
+            final int i = current;
+            if (i < 0)
+                throw new IllegalStateException("not started/already removed");
+            return i;
+        }
+
+        final void removeCurrent(){
+            final int i = currentIdx();
+            current = -1;
+            final Object[] tab = this.tab;
+            if (tab != table){//the map has been resized meanwhile
+                Object k = tab[i];
+                if (k != null)
+                    CompactHashMap.this.remove(k);
+                return;
+            }
+            size--;
+            tab[i] = null;
+            tab[i + 1] = null;
+            closeDeletion(i, tab, tab.length, this);
+            next = seek(i);//the removed slot may hold a shifted entry now
+        }
+    }
+
+    private class Cursor extends Traverser implements MapCursor<K, V>{
         @Override
-        public boolean hasNext() {
-            return (idx & Integer.MAX_VALUE) < tab.length;
+        public boolean advance() {
+            if (next >= tab.length){
+                current = -1;
+                return false;
+            }
+            nextIdx();
+            return true;
         }
-        
-        final int nextIdx() {
+
+        @SuppressWarnings("unchecked")
+        @Override public K key() {return (K) tab[currentIdx()];}
+        @SuppressWarnings("unchecked")
+        @Override public V value() {return (V) tab[currentIdx() + 1];}
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public V setValue(V value) {
+            final int i = currentIdx();
+            Objects.requireNonNull(value);
             final Object[] tab = this.tab;
-            for(int i = idx & Integer.MAX_VALUE; i< tab.length; i+=2){
-                if (tab[i] != null){
-                    int result = i;                    
-                    //find next;                  
-                    for (i+=2; i<tab.length &&  tab[i] == null; i+=2);                                            
-                    idx = i;
-                    return result;
-                }
+            if (tab == table){
+                V prev = (V) tab[i + 1];
+                tab[i + 1] = value;
+                return prev;
             }
-            throw new NoSuchElementException();
+            return CompactHashMap.this.put((K) tab[i], value);
+        }
+
+        @Override public void remove() {removeCurrent();}
+    }
+
+    private abstract class BasicIter<E> extends Traverser implements Iterator<E>{
+        @Override
+        public boolean hasNext() {
+            return next < tab.length;
         }
         
         public void remove() {
-            if (idx <= 0)//idx must be positive
-                throw new IllegalStateException("not started/already removed");
-            
-            int i = (idx & Integer.MAX_VALUE) - 2;
-            
-            while (tab[i] == null) //rewind and find the previous non-null
-                i-=2;
-            
-            if (tab==table) 
-                tab = tab.clone();//too lazy to impl. the removal + fencing/etc. (so copy-on-write)
-            
-            CompactHashMap.this.remove(tab[i]);
-            idx |=Integer.MIN_VALUE;//mark the removal
+            removeCurrent();//in place, no copy-on-write
         }
     }
     
     private class EntryIter extends BasicIter<Map.Entry<K, V>>{
-        @SuppressWarnings("unchecked")
         public final Map.Entry<K, V> next(){
-            final int i = nextIdx();
-            return new AbstractMap.SimpleEntry<K, V>((K)tab[i], (V)tab[i+1]){
-                private static final long serialVersionUID = 1L;
-                
-                @Override
-                public V setValue(V value) {
-                    V prev = super.setValue(Objects.requireNonNull(value));
-                    if (tab == table){
-                        tab[i+1] = value;
-                        return prev;
-                    }  
-                    return CompactHashMap.this.put(getKey(), value);
-                }                
-            };
+            return new TableEntry(tab, nextIdx());
         }                              
     }
+
+    private class TableEntry extends AbstractMap.SimpleEntry<K, V>{
+        private static final long serialVersionUID = 1L;
+        private final transient Object[] tab;
+        private final transient int i;
+
+        @SuppressWarnings("unchecked")
+        TableEntry(Object[] tab, int i){
+            super((K)tab[i], (V)tab[i+1]);
+            this.tab = tab;
+            this.i = i;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V prev = super.setValue(Objects.requireNonNull(value));
+            if (tab == table && tab[i] == getKey()){//removals may shift the entries
+                tab[i+1] = value;
+                return prev;
+            }  
+            return CompactHashMap.this.put(getKey(), value);
+        }                
+    }
+
+    /**
+     * Late-binding spliterator over a range of the table; splits in halves on key (even) boundaries. 
+     * The size is exact prior the 1st split only, afterwards it is an estimate, assuming uniform distribution.
+     */
+    private abstract class TableSpliterator<E, S extends TableSpliterator<E, S>> implements Spliterator<E>{
+        Object[] tab;
+        int index;//current key index, inclusive
+        int fence;//exclusive; -1 until bound
+        int est;
+
+        TableSpliterator(Object[] tab, int origin, int fence, int est){
+            this.tab = tab;
+            this.index = origin;
+            this.fence = fence;
+            this.est = est;
+        }
+
+        final int getFence(){
+            int hi = fence;
+            if (hi < 0){
+                final Object[] tab = this.tab = table;
+                est = size;
+                hi = fence = tab.length;
+            }
+            return hi;
+        }
+
+        abstract S split(int origin, int fence, int est);
+
+        @Override
+        public final S trySplit() {
+            final int hi = getFence(), lo = index, mid = ((lo + hi) >>> 1) & ~1;
+            if (lo >= mid)
+                return null;
+            index = mid;
+            return split(lo, mid, est >>>= 1);
+        }
+
+        @Override
+        public final long estimateSize() {
+            getFence();
+            return est;
+        }
+
+        @Override
+        public int characteristics() {
+            return (fence < 0 || est == size ? Spliterator.SIZED : 0) | Spliterator.NONNULL | Spliterator.DISTINCT;
+        }
+    }
+
+    private final class KVSpliterator<E> extends TableSpliterator<E, KVSpliterator<E>>{
+        final int offset;
+        KVSpliterator(Object[] tab, int origin, int fence, int est, int offset){
+            super(tab, origin, fence, est);
+            this.offset = offset;
+        }
+
+        @Override
+        KVSpliterator<E> split(int origin, int fence, int est) {
+            return new KVSpliterator<>(tab, origin, fence, est, offset);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void forEachRemaining(java.util.function.Consumer<? super E> action) {
+            Objects.requireNonNull(action);
+            final int hi = getFence(), offset = this.offset;
+            final Object[] tab = this.tab;
+            int i = index;
+            index = hi;
+            for (; i < hi; i+=2){
+                if (tab[i] != null)
+                    action.accept((E) tab[i + offset]);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public boolean tryAdvance(java.util.function.Consumer<? super E> action) {
+            Objects.requireNonNull(action);
+            final int hi = getFence();
+            final Object[] tab = this.tab;
+            for (int i = index; i < hi; i+=2){
+                if (tab[i] != null){
+                    index = i + 2;
+                    action.accept((E) tab[i + offset]);
+                    return true;
+                }
+            }
+            index = hi;
+            return false;
+        }
+
+        @Override
+        public int characteristics() {
+            return offset == 0 ? super.characteristics() : super.characteristics() & ~Spliterator.DISTINCT;//values are not distinct
+        }
+    }
+
+    private final class EntrySpliterator extends TableSpliterator<Map.Entry<K, V>, EntrySpliterator>{
+        EntrySpliterator(Object[] tab, int origin, int fence, int est){
+            super(tab, origin, fence, est);
+        }
+
+        @Override
+        EntrySpliterator split(int origin, int fence, int est) {
+            return new EntrySpliterator(tab, origin, fence, est);
+        }
+
+        @Override
+        public void forEachRemaining(java.util.function.Consumer<? super Map.Entry<K, V>> action) {
+            Objects.requireNonNull(action);
+            final int hi = getFence();
+            final Object[] tab = this.tab;
+            int i = index;
+            index = hi;
+            for (; i < hi; i+=2){
+                if (tab[i] != null)
+                    action.accept(new TableEntry(tab, i));
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(java.util.function.Consumer<? super Map.Entry<K, V>> action) {
+            Objects.requireNonNull(action);
+            final int hi = getFence();
+            final Object[] tab = this.tab;
+            for (int i = index; i < hi; i+=2){
+                if (tab[i] != null){
+                    index = i + 2;
+                    action.accept(new TableEntry(tab, i));
+                    return true;
+                }
+            }
+            index = hi;
+            return false;
+        }
+    }
     
     //let's make it a full replacement, get proper serialization as well
     private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
         s.defaultWriteObject();
         s.writeInt(size);
         Object[] tab = table;
+        if (compactSerialization){
+            final int keyTag = columnTag(tab, 0), valueTag = columnTag(tab, 1);
+            s.writeByte(keyTag);
+            s.writeByte(valueTag);
+            for (int i=0; i<tab.length; i+=2){
+                if (tab[i]!=null) {
+                    writeTagged(s, tab[i], keyTag);
+                    writeTagged(s, tab[i+1], valueTag);
+                }
+            }
+            return;
+        }
         for (int i=0; i<tab.length; i+=2){
             if (tab[i]!=null) {
                 s.writeObject(tab[i]);
@@ -517,17 +1584,108 @@ public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, java.io.Seria
             }
         }
     }
-    @SuppressWarnings("unchecked")
+
+    //compact serialization: a tag per column (keys, values) if all of them are of the same type, otherwise (TAG_MIXED) a tag per key/value 
+    private static final int TAG_MIXED = -1, TAG_OBJECT = 0, TAG_STRING = 1, TAG_INT = 2, TAG_LONG = 3, TAG_DOUBLE = 4, TAG_BOOLEAN = 5;
+
+    private static int tagOf(Object o){
+        final Class<?> c = o.getClass();//exact classes only, no instanceof chains
+        if (c == String.class)
+            return ((String) o).length() <= 0xFFFF / 3 ? TAG_STRING : TAG_OBJECT;//writeUTF takes up to 64K bytes, at most 3 per char
+        if (c == Integer.class)
+            return TAG_INT;
+        if (c == Long.class)
+            return TAG_LONG;
+        if (c == Double.class)
+            return TAG_DOUBLE;
+        if (c == Boolean.class)
+            return TAG_BOOLEAN;
+        return TAG_OBJECT;
+    }
+
+    private static int columnTag(Object[] tab, int offset){
+        int tag = TAG_MIXED;
+        for (int i=0; i<tab.length; i+=2){
+            if (tab[i] == null)
+                continue;
+            final int t = tagOf(tab[i + offset]);
+            if (tag == TAG_MIXED)
+                tag = t;
+            else if (tag != t)
+                return TAG_MIXED;
+        }
+        return tag;
+    }
+
+    private static void writeTagged(java.io.ObjectOutputStream s, Object o, int columnTag) throws java.io.IOException{
+        int tag = columnTag;
+        if (tag == TAG_MIXED)
+            s.writeByte(tag = tagOf(o));
+        switch (tag){
+            case TAG_STRING: s.writeUTF((String) o); break;
+            case TAG_INT: writeVarLong(s, (Integer) o); break;
+            case TAG_LONG: writeVarLong(s, (Long) o); break;
+            case TAG_DOUBLE: s.writeDouble((Double) o); break;
+            case TAG_BOOLEAN: s.writeBoolean((Boolean) o); break;
+            default: s.writeObject(o);
+        }
+    }
+
+    private static Object readTagged(java.io.ObjectInputStream s, int columnTag) throws IOException, ClassNotFoundException {
+        final int tag = columnTag == TAG_MIXED ? s.readByte() : columnTag;
+        switch (tag){
+            case TAG_OBJECT: return s.readObject();
+            case TAG_STRING: return s.readUTF();
+            case TAG_INT: return (int) readVarLong(s);
+            case TAG_LONG: return readVarLong(s);
+            case TAG_DOUBLE: return s.readDouble();
+            case TAG_BOOLEAN: return s.readBoolean();
+            default: throw new java.io.StreamCorruptedException("Unknown tag: "+tag);
+        }
+    }
+
+    private static void writeVarLong(java.io.ObjectOutputStream s, long v) throws java.io.IOException{
+        v = v << 1 ^ v >> 63;//zig-zag, small negative numbers stay short
+        for (; (v & ~0x7FL) != 0; v >>>= 7)
+            s.writeByte((int) v & 0x7F | 0x80);
+        s.writeByte((int) v);
+    }
+
+    private static long readVarLong(java.io.ObjectInputStream s) throws java.io.IOException{
+        long v = 0;
+        for (int shift = 0; ; shift += 7){
+            final int b = s.readByte();
+            if (shift == 63 && (b & 0x7E) != 0 || shift > 63)//the 10th byte holds the top bit only, no 11th one
+                throw new java.io.StreamCorruptedException("Malformed varint");
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+        }
+        return v >>> 1 ^ -(v & 1);
+    }
+
     private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
         s.defaultReadObject();
-        this.table = EMPTY;
+        releaseTable();
         int size  = s.readInt();
         if (size <= 0){
             return;
         }
-        resize(Math.max(1, Integer.highestOneBit(size -1)<<1));
+        if (size >= MAXIMUM_CAPACITY)
+            throw new java.io.InvalidObjectException("Illegal size: "+size);
+        //a serialized map has no duplicate keys (the strategy is deserialized already): bulk load, no equals/put
+        final Object[] tab = new Object[lengthFor(size)];
+        final int[] hashes = cacheHashes ? new int[tab.length >> 1] : null;
+        final boolean tagged = compactSerialization;
+        final int keyTag = tagged ? s.readByte() : TAG_OBJECT, valueTag = tagged ? s.readByte() : TAG_OBJECT;
         for (int i=0; i<size; i++){
-            put((K)s.readObject(), (V)s.readObject());
+            final Object k = tagged ? readTagged(s, keyTag) : s.readObject(), v = tagged ? readTagged(s, valueTag) : s.readObject();
+            if (k == null || v == null)
+                throw new java.io.InvalidObjectException("Null key/value");
+            place(k, spread(k), v, tab, hashes);
         }
+        this.table = tab;
+        this.hashes = hashes;
+        this.size = size;
     }
 }
\ No newline at end of file
@@ -0,0 +1,607 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+* Concurrent flavor of {@link CompactHashMap}: the same interleaved key/value table, linear probe and backward shift deletion, split into
+* lock striped segments (the high bits of the smeared hash select the segment). Each segment grows on its own, so a resize stalls the writers
+* of a single stripe only and never the readers - they keep on reading the old table, which is left intact.
+*
+* The reads are lock free: volatile loads of the slots (an AtomicReferenceArray per table), validated by a per segment sequence, a seqlock.
+* The sequence is odd only while a removal shifts entries back (closing the deletion), a reader that overlaps a removal retries,
+* then falls back to the segment lock. Adding a new key does not move entries: the value is stored first, the key is published with a lazySet.
+*
+* All ConcurrentMap methods are atomic, the remapping functions are called under the segment lock (as ConcurrentHashMap does),
+* so they should be short and should not update the map (if they do, the key is looked up again). The iterators are weakly consistent: they walk a snapshot of one segment at a time.
+* No null keys and values.
+*
+* @author Stanimir Simeonoff
+*/
+public class ConcurrentCompactHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final Object[] EMPTY = {};
+    private static final AtomicReferenceArray<Object> EMPTY_TABLE = new AtomicReferenceArray<>(0);
+    private static final int MAXIMUM_CAPACITY = 1 << 29;//per segment
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final Object RETRY = new Object();//a torn read: a key with no value
+
+    private final int segmentShift;
+    private transient Segment[] segments;
+
+    static final class Segment{
+        volatile AtomicReferenceArray<Object> table = EMPTY_TABLE;//replaced (never modified) on resize
+        volatile int size;//written under the lock
+        volatile int seq;//odd while the entries are shifted by a removal
+    }
+
+    public ConcurrentCompactHashMap() {
+        this(0, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a map that holds expectedSize (well distributed) elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public ConcurrentCompactHashMap(int expectedSize) {
+        this(expectedSize, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param expectedSize the expected number of mappings
+     * @param concurrencyLevel the expected number of concurrently updating threads, i.e. the number of lock stripes (rounded up to a power of 2)
+     * @throws IllegalArgumentException if expectedSize is negative or concurrencyLevel is not positive
+     */
+    public ConcurrentCompactHashMap(int expectedSize, int concurrencyLevel) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("Illegal concurrency level: "+concurrencyLevel);
+        int count = 1;
+        while (count < concurrencyLevel && count < MAX_SEGMENTS)
+            count <<= 1;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.segments = newSegments(count, (expectedSize + count - 1) / count);
+    }
+
+    public ConcurrentCompactHashMap(Map<? extends K, ? extends V> m) {
+        this(m.size(), DEFAULT_SEGMENTS);
+        putAll(m);
+    }
+
+    private static Segment[] newSegments(int count, int expectedSize) {
+        final Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i++){
+            segments[i] = new Segment();
+            if (expectedSize > 0)
+                segments[i].table = new AtomicReferenceArray<>(lengthFor(expectedSize));
+        }
+        return segments;
+    }
+
+    private static int lengthFor(int size) {
+        int len = 2;
+        while (len < 2 * MAXIMUM_CAPACITY && CompactHashMap.needGrow(len, size))
+            len <<= 1;
+        return len;
+    }
+
+    private static int spread(Object key) {
+        return CompactHashMap.smear(key.hashCode());
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+    private static int slot(int hash, int len) {
+        return hash & (len - 1) & ~1;
+    }
+
+    private static int nextKeyIndex(int i, int len) {
+        return (i + 2) & (len - 1);
+    }
+
+    /**
+     * Lock free probe
+     * @return the value, null if absent or RETRY if the key has been seen without its value
+     */
+    private static Object find(Object k, int hash, AtomicReferenceArray<Object> tab) {
+        final int len = tab.length();
+        if (len == 0)
+            return null;
+        for (int i = slot(hash, len), start = i;;){
+            final Object item = tab.get(i);
+            if (item == null)
+                return null;
+            if (item == k || k.equals(item)){
+                final Object v = tab.get(i + 1);
+                return v == null ? RETRY : v;
+            }
+            if ((i = nextKeyIndex(i, len)) == start)
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        final int hash = spread(key);
+        final Segment s = segmentFor(hash);
+        for (int attempt = 0; attempt < 2; attempt++){
+            final int seq = s.seq;
+            if ((seq & 1) != 0)
+                continue;
+            final Object v = find(key, hash, s.table);
+            if (v != RETRY && s.seq == seq)//the slot loads are volatile, they happen before the validation
+                return (V) v;
+        }
+        synchronized (s){
+            return (V) find(key, hash, s.table);
+        }
+    }
+
+    @Override public boolean containsKey(Object key) {return get(key) != null;}
+
+    @Override
+    public int size() {
+        long n = 0;
+        for (Segment s : segments)
+            n += s.size;
+        return (int) Math.min(n, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment s : segments){
+            if (s.size != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Locked probe
+     * @return the index of the key, if present; otherwise the complement (~) of the free slot the key should go to (the start, if the table is full)
+     */
+    private static int indexOf(Object k, int hash, AtomicReferenceArray<Object> tab) {
+        final int len = tab.length();
+        for (int i = slot(hash, len), start = i;;){
+            final Object item = tab.get(i);
+            if (item == null)
+                return ~i;
+            if (item == k || k.equals(item))
+                return i;
+            if ((i = nextKeyIndex(i, len)) == start)
+                return ~i;
+        }
+    }
+
+    /**
+     * Locked probe of the current table of the segment
+     */
+    private static int indexOf(Segment s, Object k, int hash) {
+        final AtomicReferenceArray<Object> tab = s.table;
+        return tab.length() == 0 ? -1 : indexOf(k, hash, tab);
+    }
+
+    /**
+     * @return true if a function called under the lock has updated the segment (the monitor is reentrant), so a probe index taken before is stale
+     */
+    private static boolean modified(Segment s, AtomicReferenceArray<Object> tab, int size, int seq) {
+        return s.table != tab || s.size != size || s.seq != seq;
+    }
+
+    /**
+     * Adds a new mapping under the lock, i is the result of indexOf (the complement of the free slot)
+     */
+    private static void insert(Segment s, int i, Object k, int hash, Object value) {
+        AtomicReferenceArray<Object> tab = s.table;
+        final int size = s.size + 1;
+        if (tab.length() == 0){
+            s.table = new AtomicReferenceArray<>(new Object[]{k, value});
+            s.size = size;
+            return;
+        }
+        i = ~i;
+        if (tab.get(i) != null || CompactHashMap.needGrow(tab.length(), size)){
+            if (tab.length() == 2 * MAXIMUM_CAPACITY){
+                if (tab.get(i) != null)
+                    throw new IllegalStateException("Capacity exhausted.");
+            } else {
+                s.table = tab = rehash(tab, tab.length() << 1);
+                i = slot(hash, tab.length());
+                while (tab.get(i) != null)
+                    i = nextKeyIndex(i, tab.length());
+            }
+        }
+        tab.lazySet(i + 1, value);
+        tab.lazySet(i, k);//the value is visible prior the key
+        s.size = size;
+    }
+
+    private static AtomicReferenceArray<Object> rehash(AtomicReferenceArray<Object> oldTable, int newLength) {
+        final AtomicReferenceArray<Object> tab = new AtomicReferenceArray<>(newLength);
+        for (int j = 0; j < oldTable.length(); j += 2){//the old table stays intact, the readers may still use it
+            final Object k = oldTable.get(j);
+            if (k == null)
+                continue;
+            int i = slot(spread(k), newLength);
+            while (tab.get(i) != null)
+                i = nextKeyIndex(i, newLength);
+            tab.lazySet(i, k);
+            tab.lazySet(i + 1, oldTable.get(j + 1));
+        }
+        return tab;//published by the volatile write of the table
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V removeAt(Segment s, AtomicReferenceArray<Object> tab, int i) {
+        final int seq = s.seq;
+        s.seq = seq + 1;//odd: the readers retry; the stores below are volatile as well, so they are not reordered before it
+        final V old = (V) tab.get(i + 1);
+        tab.set(i, null);
+        tab.set(i + 1, null);
+        closeDeletion(i, tab);
+        s.size = s.size - 1;
+        s.seq = seq + 2;
+        return old;
+    }
+
+    /**
+     * Knuth Section 6.4 Algorithm R, see CompactHashMap.closeDeletion
+     */
+    private static void closeDeletion(int del, AtomicReferenceArray<Object> tab) {
+        final int len = tab.length();
+        Object item;
+        for (int i = nextKeyIndex(del, len); (item = tab.get(i)) != null; i = nextKeyIndex(i, len)){
+            final int h = slot(spread(item), len);
+            if ((i < h && (h <= del || del <= i)) || (h <= del && del <= i)) {
+                tab.set(del, item);
+                tab.set(del + 1, tab.get(i + 1));
+                tab.set(i, null);
+                tab.set(i + 1, null);
+                del = i;
+            }
+        }
+    }
+
+    private V put(K key, V value, boolean onlyIfAbsent) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        final int hash = spread(k);
+        final Segment s = segmentFor(hash);
+        synchronized (s){
+            final AtomicReferenceArray<Object> tab = s.table;
+            final int i = tab.length() == 0 ? -1 : indexOf(k, hash, tab);
+            if (i >= 0){
+                @SuppressWarnings("unchecked")
+                final V old = (V) tab.get(i + 1);
+                if (!onlyIfAbsent)
+                    tab.lazySet(i + 1, value);
+                return old;
+            }
+            insert(s, i, k, hash, value);
+            return null;
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, false);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return put(key, value, true);
+    }
+
+    @Override
+    public V remove(Object key) {
+        final int hash = spread(key);
+        final Segment s = segmentFor(hash);
+        synchronized (s){
+            final AtomicReferenceArray<Object> tab = s.table;
+            final int i = tab.length() == 0 ? -1 : indexOf(key, hash, tab);
+            return i < 0 ? null : removeAt(s, tab, i);
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        Objects.requireNonNull(key);
+        if (value == null)
+            return false;
+        final int hash = spread(key);
+        final Segment s = segmentFor(hash);
+        synchronized (s){
+            final AtomicReferenceArray<Object> tab = s.table;
+            final int i = tab.length() == 0 ? -1 : indexOf(key, hash, tab);
+            if (i < 0 || !value.equals(tab.get(i + 1)))
+                return false;
+            removeAt(s, tab, i);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        final int hash = spread(key);
+        final Segment s = segmentFor(hash);
+        synchronized (s){
+            final AtomicReferenceArray<Object> tab = s.table;
+            final int i = tab.length() == 0 ? -1 : indexOf(key, hash, tab);
+            if (i < 0 || !oldValue.equals(tab.get(i + 1)))
+                return false;
+            tab.lazySet(i + 1, newValue);
+            return true;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        final int hash = spread(key);
+        final Segment s = segmentFor(hash);
+        synchronized (s){
+            final AtomicReferenceArray<Object> tab = s.table;
+            final int i = tab.length() == 0 ? -1 : indexOf(key, hash, tab);
+            if (i < 0)
+                return null;
+            final V old = (V) tab.get(i + 1);
+            tab.lazySet(i + 1, value);
+            return old;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        V v = get(key);//lock free for the present keys
+        if (v != null)
+            return v;
+        final int hash = spread(key);
+        final Segment s = segmentFor(hash);
+        synchronized (s){
+            final AtomicReferenceArray<Object> tab = s.table;
+            int i = tab.length() == 0 ? -1 : indexOf(key, hash, tab);
+            if (i >= 0)
+                return (V) tab.get(i + 1);
+            final int size = s.size, seq = s.seq;
+            if ((v = mappingFunction.apply(key)) == null)
+                return null;
+            if (modified(s, tab, size, seq))
+                i = indexOf(s, key, hash);
+            if (i >= 0)
+                s.table.lazySet(i + 1, v);
+            else
+                insert(s, i, key, hash, v);
+            return v;
+        }
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return get(key) == null ? null : compute(key, remappingFunction, true);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, remappingFunction, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction, boolean onlyIfPresent) {
+        final int hash = spread(key);
+        final Segment s = segmentFor(hash);
+        synchronized (s){
+            final AtomicReferenceArray<Object> tab = s.table;
+            int i = tab.length() == 0 ? -1 : indexOf(key, hash, tab);
+            if (i < 0 && onlyIfPresent)
+                return null;
+            final V old = i < 0 ? null : (V) tab.get(i + 1);
+            final int size = s.size, seq = s.seq;
+            final V v = remappingFunction.apply(key, old);
+            if (modified(s, tab, size, seq))
+                i = indexOf(s, key, hash);
+            if (v == null){
+                if (i >= 0)
+                    removeAt(s, s.table, i);
+            } else if (i >= 0){
+                s.table.lazySet(i + 1, v);
+            } else {
+                insert(s, i, key, hash, v);
+            }
+            return v;
+        }
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, (k, old) -> old == null ? value : remappingFunction.apply(old, value), false);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment s : segments){
+            synchronized (s){
+                s.table = EMPTY_TABLE;//the readers of the old table are ordered prior the clear
+                s.size = 0;
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        for (Segment s : segments){
+            final Object[] tab = snapshot(s);
+            for (int i = 0; i < tab.length; i += 2){
+                if (tab[i] != null)
+                    action.accept((K) tab[i], (V) tab[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * @return a consistent copy of the segment's table
+     */
+    private static Object[] snapshot(Segment s) {
+        final int seq = s.seq;
+        if ((seq & 1) == 0){
+            final Object[] tab = copy(s.table);
+            if (s.seq == seq)
+                return tab;
+        }
+        synchronized (s){
+            return copy(s.table);
+        }
+    }
+
+    private static Object[] copy(AtomicReferenceArray<Object> table) {
+        final Object[] tab = new Object[table.length()];
+        for (int i = 0; i < tab.length; i++)
+            tab[i] = table.get(i);
+        return tab;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIter();
+            }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getKey() == null ? null : get(e.getKey());
+                return v != null && v.equals(e.getValue());
+            }
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return e.getKey() != null && ConcurrentCompactHashMap.this.remove(e.getKey(), e.getValue());
+            }
+            @Override public void clear() {ConcurrentCompactHashMap.this.clear();}
+            @Override public int size() {return ConcurrentCompactHashMap.this.size();}
+            @Override public boolean isEmpty() {return ConcurrentCompactHashMap.this.isEmpty();}
+        };
+    }
+
+    private class EntryIter implements Iterator<Map.Entry<K, V>>{
+        int segment = -1;
+        Object[] tab = EMPTY;
+        int next;//index in tab
+        Object lastKey;
+
+        EntryIter() {
+            advance(0);
+        }
+
+        private void advance(int i) {
+            for (;;){
+                for (; i < tab.length; i += 2){
+                    if (tab[i] != null){
+                        next = i;
+                        return;
+                    }
+                }
+                if (++segment == segments.length){
+                    next = -1;
+                    tab = EMPTY;
+                    return;
+                }
+                tab = snapshot(segments[segment]);
+                i = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            final int i = next;
+            if (i < 0)
+                throw new NoSuchElementException();
+            final Object[] tab = this.tab;
+            advance(i + 2);
+            lastKey = tab[i];
+            return new WriteThroughEntry((K) tab[i], (V) tab[i + 1]);
+        }
+
+        @Override
+        public void remove() {
+            final Object k = lastKey;
+            if (k == null)
+                throw new IllegalStateException("not started/already removed");
+            lastKey = null;
+            ConcurrentCompactHashMap.this.remove(k);
+        }
+    }
+
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V>{
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            put(getKey(), Objects.requireNonNull(value));
+            return super.setValue(value);
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        for (Segment segment : segments){
+            final Object[] tab = snapshot(segment);
+            for (int i=0; i<tab.length; i+=2){
+                if (tab[i]!=null) {
+                    s.writeObject(tab[i]);
+                    s.writeObject(tab[i+1]);
+                }
+            }
+        }
+        s.writeObject(null);//end of the entries, the size is not known upfront
+    }
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        if (segmentShift < 32 - Integer.numberOfTrailingZeros(MAX_SEGMENTS) || segmentShift > 32)
+            throw new java.io.InvalidObjectException("Illegal segment shift: "+segmentShift);
+        segments = newSegments(1 << (32 - segmentShift), 0);
+        for (Object k; (k = s.readObject()) != null; ){
+            put((K) k, (V) s.readObject());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Decides when the table of {@link CompactHashMap} has to double, i.e. the fill (load) factor. 
+ * Lower fill factors mean shorter probe sequences (faster lookups, esp. misses), higher ones - less memory.
+ * The policy is serialized along with the map, so it should be an enum, a serializable class or a serializable lambda.
+ * 
+ * @author Stanimir Simeonoff
+ */
+@FunctionalInterface
+public interface GrowthPolicy extends java.io.Serializable{
+    /**
+     * @param capacity the number of key slots in the table, power of 2
+     * @param size the number of mappings, including the one being added
+     * @return true if the table has to double its capacity. Regardless the result, the table always grows if the size exceeds the capacity
+     */
+    boolean needGrow(int capacity, int size);
+
+    /**
+     * Returns a policy with a fixed fill factor. Tables over 16 slots are filled up to 15/16 at most, 
+     * a full table would turn every miss into a scan of the entire table.
+     * @param loadFactor in the range (0, 1]
+     */
+    static GrowthPolicy loadFactor(float loadFactor){
+        if (!(loadFactor > 0f && loadFactor <= 1f))//NaN as well
+            throw new IllegalArgumentException("Illegal load factor: "+loadFactor);
+        return new LoadFactor(loadFactor);
+    }
+
+    enum Preset implements GrowthPolicy{
+        /** Fill factor of 1 for up to 16 slots, 66% up to 64 and 75% for larger tables. */
+        DEFAULT {
+            @Override public boolean needGrow(int capacity, int size) {return CompactHashMap.needGrow(capacity << 1, size);}
+        },
+        /** 50% fill factor, short probe sequences for lookup heavy maps. */
+        LOOKUP {
+            @Override public boolean needGrow(int capacity, int size) {return capacity < size << 1;}
+        },
+        /** 90% fill factor (1 for up to 16 slots) for memory sensitive, rarely accessed maps. */
+        COMPACT {
+            @Override public boolean needGrow(int capacity, int size) {return capacity <= 16 ? capacity < size : capacity - (capacity >> 4) - (capacity >> 5) < size;}
+        };
+    }
+
+    final class LoadFactor implements GrowthPolicy{
+        private static final long serialVersionUID = 1L;
+        private static final float MAX_LARGE = 0.9375f;//for tables over 16 slots
+        private final float loadFactor;
+
+        LoadFactor(float loadFactor) {
+            this.loadFactor = loadFactor;
+        }
+
+        @Override
+        public boolean needGrow(int capacity, int size) {
+            return capacity * (capacity <= 16 ? loadFactor : Math.min(loadFactor, MAX_LARGE)) < size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LoadFactor && ((LoadFactor) o).loadFactor == loadFactor;
+        }
+
+        @Override
+        public int hashCode() {
+            return Float.floatToIntBits(loadFactor);
+        }
+
+        @Override
+        public String toString() {
+            return "LoadFactor[" + loadFactor + "]";
+        }
+    }
+}
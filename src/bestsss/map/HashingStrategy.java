@@ -0,0 +1,67 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Custom hashing and equality of the keys of {@link CompactHashMap}, instead of their own hashCode/equals. 
+ * Removes the need of adapter (wrapper) objects around the keys, e.g. for identity maps, case insensitive strings or byte[] compared by content.
+ * The strategy is serialized along with the map.
+ * 
+ * @param <T> the type of the keys
+ * @author Stanimir Simeonoff
+ */
+public interface HashingStrategy<T> extends java.io.Serializable{
+    /**
+     * @param key never null
+     * @return the hash code of the key, consistent with {@link #equals(Object, Object)}
+     */
+    int hashCode(T key);
+
+    /**
+     * @param key never null
+     * @param other never null
+     */
+    boolean equals(T key, T other);
+
+    /** Reference equality and identity hash codes, akin to IdentityHashMap. */
+    @SuppressWarnings("unchecked")
+    static <T> HashingStrategy<T> identity(){
+        return (HashingStrategy<T>) Preset.IDENTITY;
+    }
+
+    /** Strings compared via equalsIgnoreCase. */
+    @SuppressWarnings("unchecked")
+    static HashingStrategy<String> caseInsensitive(){
+        return (HashingStrategy<String>) (HashingStrategy<?>) Preset.CASE_INSENSITIVE;
+    }
+
+    /** byte arrays compared by content. */
+    @SuppressWarnings("unchecked")
+    static HashingStrategy<byte[]> byteArray(){
+        return (HashingStrategy<byte[]>) (HashingStrategy<?>) Preset.BYTE_ARRAY;
+    }
+
+    enum Preset implements HashingStrategy<Object>{
+        IDENTITY{
+            @Override public int hashCode(Object key) {return System.identityHashCode(key);}
+            @Override public boolean equals(Object key, Object other) {return key == other;}
+        },
+        CASE_INSENSITIVE{
+            @Override
+            public int hashCode(Object key) {
+                final String s = (String) key;
+                int h = 0;
+                for (int i=0, len=s.length(); i<len; i++){//the same folding as String.equalsIgnoreCase
+                    h = 31*h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+                }
+                return h;
+            }
+            @Override public boolean equals(Object key, Object other) {return ((String) key).equalsIgnoreCase((String) other);}
+        },
+        BYTE_ARRAY{
+            @Override public int hashCode(Object key) {return java.util.Arrays.hashCode((byte[]) key);}
+            @Override public boolean equals(Object key, Object other) {return java.util.Arrays.equals((byte[]) key, (byte[]) other);}
+        };
+    }
+}
@@ -0,0 +1,316 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+* Read only flavor of {@link CompactHashMap} for maps built once and read a lot (configuration, routing tables): the same interleaved table and linear probe,
+* yet the table is laid out to minimize the longest probe. The build tries a few hash seeds (and a table twice the regular size), places
+* the entries Robin Hood style (which minimizes the probe variance) and keeps the layout with the shortest longest probe.
+* The lookup is bounded by that length, so there is no wraparound check, and the table is never empty, so there is no length check either.
+*
+* The build hashes each key once, every try is a pass over the hashes (no equals calls); the longer the keys take to hash, the better.
+* A final pass looks up each key, keys equal under the hashing strategy are rejected like in Map.of.
+* No null keys and values; all the mutators throw UnsupportedOperationException.
+*
+* @author Stanimir Simeonoff
+*/
+public final class ImmutableCompactMap<K, V> extends AbstractMap<K, V> implements java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+    private static final int SEEDS = 8;//per table length
+    private static final int GOLDEN = 0x9E3779B9;
+
+    private final HashingStrategy<? super K> strategy;//null for the natural hashCode/equals
+    private transient Object[] table;//key at even pos, value at odd; at least one free slot
+    private transient int seed;
+    private transient int probes;//the longest probe, at least 1
+    private transient int size;
+
+    private ImmutableCompactMap(HashingStrategy<? super K> strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @return an immutable copy of the map
+     * @throws NullPointerException if the map contains a null key or value
+     */
+    public static <K, V> ImmutableCompactMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+        return copyOf(map, null);
+    }
+
+    /**
+     * @param strategy the hashing strategy of the keys, null for the natural hashCode/equals
+     * @return an immutable copy of the map
+     * @throws NullPointerException if the map contains a null key or value
+     * @throws IllegalArgumentException if the map contains keys equal according to the strategy
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> ImmutableCompactMap<K, V> copyOf(Map<? extends K, ? extends V> map, HashingStrategy<? super K> strategy) {
+        if (map instanceof ImmutableCompactMap && ((ImmutableCompactMap<?, ?>) map).strategy == strategy)
+            return (ImmutableCompactMap<K, V>) map;
+        final Object[] entries = new Object[map.size() << 1];
+        int n = 0;
+        for (Map.Entry<? extends K, ? extends V> e : map.entrySet()){
+            if (n == entries.length)
+                throw new ConcurrentModificationException();
+            entries[n++] = Objects.requireNonNull(e.getKey());
+            entries[n++] = Objects.requireNonNull(e.getValue());
+        }
+        if (n != entries.length)
+            throw new ConcurrentModificationException();
+        final ImmutableCompactMap<K, V> result = new ImmutableCompactMap<>(strategy);
+        result.build(entries);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int spread(Object key) {
+        final HashingStrategy<Object> strategy = (HashingStrategy<Object>) this.strategy;
+        return strategy == null ? key.hashCode() : strategy.hashCode(key);
+    }
+    private static int mix(int hash, int seed) {
+        return CompactHashMap.smear(hash ^ seed);
+    }
+    @SuppressWarnings("unchecked")
+    private boolean eq(Object k, Object item) {//k is never null
+        final HashingStrategy<Object> strategy = (HashingStrategy<Object>) this.strategy;
+        return k == item || (strategy == null ? k.equals(item) : item != null && strategy.equals(k, item));
+    }
+
+    /**
+     * @param entries the keys and the values interleaved
+     * @throws IllegalArgumentException on duplicate keys
+     */
+    private void build(Object[] entries) {
+        final int size = entries.length >> 1;
+        if (size >= MAXIMUM_CAPACITY)
+            throw new IllegalStateException("Capacity exhausted.");
+        final int[] hashes = new int[size];
+        for (int e = 0; e < size; e++)
+            hashes[e] = spread(entries[e << 1]);
+
+        int capacity = 1;//slots, a free one at least
+        while (capacity <= size || CompactHashMap.needGrow(capacity << 1, size))
+            capacity <<= 1;
+
+        int[] best = null, slots = new int[capacity];
+        int bestProbes = Integer.MAX_VALUE, bestSeed = 0;
+        tries:
+        for (int c = capacity; c <= capacity << 1 && c <= MAXIMUM_CAPACITY; c <<= 1){
+            if (slots.length != c)
+                slots = new int[c];
+            for (int s = 0; s < SEEDS; s++){
+                final int seed = s * GOLDEN;
+                final int probes = place(hashes, seed, slots, bestProbes);
+                if (probes < bestProbes){
+                    bestProbes = probes;
+                    bestSeed = seed;
+                    final int[] swap = best != null && best.length == c ? best : null;
+                    best = slots;
+                    slots = swap != null ? swap : new int[c];
+                    if (probes == 1)//no better than that
+                        break tries;
+                }
+            }
+        }
+        final Object[] tab = new Object[best.length << 1];
+        for (int i = 0; i < best.length; i++){
+            final int e = best[i] - 1;
+            if (e >= 0){
+                tab[i << 1] = entries[e << 1];
+                tab[(i << 1) + 1] = entries[(e << 1) + 1];
+            }
+        }
+        final int mask = tab.length - 1;
+        for (int i = 0; i < best.length; i++){//the first equal key on the probe must be the key itself
+            final int e = best[i] - 1;
+            if (e < 0)
+                continue;
+            final Object k = tab[i << 1];
+            int j = (mix(hashes[e], bestSeed) << 1) & mask;
+            while (!eq(k, tab[j]))
+                j = (j + 2) & mask;
+            if (j != i << 1)
+                throw new IllegalArgumentException("Duplicate key: " + k);
+        }
+        this.table = tab;
+        this.seed = bestSeed;
+        this.probes = bestProbes;
+        this.size = size;
+    }
+
+    /**
+     * Robin Hood placement of all the entries: the entry further from its home slot keeps the slot.
+     * @param slots (entry index + 1) per slot, zero - empty; cleared first
+     * @return the longest probe, or limit if the layout would be no better than it
+     */
+    private static int place(int[] hashes, int seed, int[] slots, int limit) {
+        Arrays.fill(slots, 0);
+        final int mask = slots.length - 1;
+        int longest = 1;
+        for (int e = 0; e < hashes.length; e++){
+            int entry = e + 1, dist = 0;
+            for (int i = mix(hashes[e], seed) & mask;; i = (i + 1) & mask){
+                final int resident = slots[i];
+                if (resident == 0){
+                    slots[i] = entry;
+                    break;
+                }
+                final int residentDist = (i - mix(hashes[resident - 1], seed)) & mask;
+                if (residentDist < dist){
+                    if (dist >= longest)
+                        longest = dist + 1;
+                    slots[i] = entry;
+                    entry = resident;
+                    dist = residentDist;
+                }
+                if (++dist + 1 >= limit)//probes = dist + 1
+                    return limit;
+            }
+            if (dist >= longest)
+                longest = dist + 1;
+        }
+        return longest;
+    }
+
+    /**
+     * @return the longest probe of a lookup (the number of slots tested), the hits are the same or shorter
+     */
+    public int getLongestProbe() {
+        return probes;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        final Object k = Objects.requireNonNull(key);
+        final Object[] tab = table;
+        final int mask = tab.length - 1;
+        for (int i = (mix(spread(k), seed) << 1) & mask, n = probes;; i = (i + 2) & mask){
+            final Object item = tab[i];
+            if (eq(k, item))
+                return (V) tab[i + 1];
+            if (item == null || --n == 0)
+                return null;
+        }
+    }
+
+    @Override public boolean containsKey(Object key) {return get(key) != null;}
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        final V v = get(key);
+        return v == null ? defaultValue : v;
+    }
+
+    @Override public int size() {return size;}
+    @Override public boolean isEmpty() {return size == 0;}
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (value == null)
+            return false;
+        final Object[] tab = table;
+        for (int i = 1; i < tab.length; i += 2){
+            if (value.equals(tab[i]))
+                return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        final Object[] tab = table;
+        for (int i = 0; i < tab.length; i += 2){
+            if (tab[i] != null)
+                action.accept((K) tab[i], (V) tab[i + 1]);
+        }
+    }
+
+    @Override public void replaceAll(java.util.function.BiFunction<? super K, ? super V, ? extends V> function) {throw new UnsupportedOperationException();}
+    @Override public V putIfAbsent(K key, V value) {throw new UnsupportedOperationException();}
+    @Override public boolean remove(Object key, Object value) {throw new UnsupportedOperationException();}
+    @Override public boolean replace(K key, V oldValue, V newValue) {throw new UnsupportedOperationException();}
+    @Override public V replace(K key, V value) {throw new UnsupportedOperationException();}
+    @Override public V computeIfAbsent(K key, java.util.function.Function<? super K, ? extends V> mappingFunction) {throw new UnsupportedOperationException();}
+    @Override public V computeIfPresent(K key, java.util.function.BiFunction<? super K, ? super V, ? extends V> remappingFunction) {throw new UnsupportedOperationException();}
+    @Override public V compute(K key, java.util.function.BiFunction<? super K, ? super V, ? extends V> remappingFunction) {throw new UnsupportedOperationException();}
+    @Override public V merge(K key, V value, java.util.function.BiFunction<? super V, ? super V, ? extends V> remappingFunction) {throw new UnsupportedOperationException();}
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new Iterator<Map.Entry<K,V>>() {
+                    final Object[] tab = table;
+                    int next = advance(0);
+
+                    private int advance(int i) {
+                        while (i < tab.length && tab[i] == null)
+                            i += 2;
+                        return i;
+                    }
+                    @Override
+                    public boolean hasNext() {
+                        return next < tab.length;
+                    }
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        final int i = next;
+                        if (i >= tab.length)
+                            throw new NoSuchElementException();
+                        next = advance(i + 2);
+                        return new AbstractMap.SimpleImmutableEntry<>((K) tab[i], (V) tab[i + 1]);
+                    }
+                };
+            }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getKey() == null ? null : get(e.getKey());
+                return v != null && v.equals(e.getValue());
+            }
+            @Override public int size() {return size;}
+        };
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        s.writeInt(size);
+        final Object[] tab = table;
+        for (int i=0; i<tab.length; i+=2){
+            if (tab[i] != null) {
+                s.writeObject(tab[i]);
+                s.writeObject(tab[i+1]);
+            }
+        }
+    }
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        final int size = s.readInt();
+        if (size < 0 || size >= MAXIMUM_CAPACITY)
+            throw new java.io.InvalidObjectException("Illegal size: "+size);
+        final Object[] entries = new Object[size << 1];
+        for (int i=0; i<entries.length; i++){
+            if ((entries[i] = s.readObject()) == null)
+                throw new java.io.InvalidObjectException("null key/value");
+        }
+        try{
+            build(entries);//the hash codes may differ in this VM, the seeds are tried anew
+        } catch (IllegalArgumentException _ex){
+            throw new java.io.InvalidObjectException(_ex.getMessage());
+        }
+    }
+}
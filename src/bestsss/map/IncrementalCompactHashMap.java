@@ -0,0 +1,527 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+* Flavor of {@link CompactHashMap} that resizes incrementally (as the Redis dict does): the same interleaved table, linear probe, fill factor curve
+* and backward shift deletion, yet a resize just allocates the new table. The entries are migrated a few clusters at a time by each put/remove
+* (about {@value #MIGRATE_SLOTS} slots), while the lookups probe both tables. So no single update pays for rehashing the whole map.
+*
+* A cluster is always migrated as a whole - the migration starts right after an empty slot of the old table and stops only at empty ones,
+* so the remaining entries of the old table keep their probe sequences intact. The old table never gets new entries (they go to the new one).
+* The reads do not migrate: a get stays read only (as in CompactHashMap) and the iterators are not disturbed.
+* If the new table needs to grow before the migration completes, the rest of the old one is migrated at once - the step is big enough for that to be rare.
+*
+* No null keys and values; no hashing strategies, Robin Hood or cached hashes.
+*
+* @author Stanimir Simeonoff
+*/
+public class IncrementalCompactHashMap<K, V> extends AbstractMap<K, V> implements Cloneable, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final Object[] EMPTY = {};
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+    private static final int MIGRATE_SLOTS = 32;//per update, at least; plus the rest of the last cluster
+
+    transient int size;//of both tables
+    transient Object[] table = EMPTY;//key at even pos, value at odd, no nulls
+    transient Object[] old;//being migrated to table, null if none
+    transient int migrateAt;//next index of old to migrate, right after an empty slot
+    transient int migrateEnd;//the empty slot of old the migration started at
+
+    public IncrementalCompactHashMap() {
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public IncrementalCompactHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (expectedSize > 0)
+            table = new Object[lengthFor(expectedSize)];
+    }
+
+    public IncrementalCompactHashMap(Map<? extends K, ? extends V> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    private static int lengthFor(int size) {
+        int len = 2;
+        while (len < MAXIMUM_CAPACITY << 1 && CompactHashMap.needGrow(len, size))
+            len <<= 1;
+        return len;
+    }
+
+    private static int hash(Object key, int len) {
+        return CompactHashMap.smear(key.hashCode()) & (len - 1) & ~1;
+    }
+
+    private static int nextKeyIndex(int i, int len) {
+        return (i + 2) & (len - 1);
+    }
+
+    /**
+     * @return the index of the key, if present; otherwise the complement (~) of the free slot the key should go to (the start one, if the table is full)
+     */
+    private static int indexOf(Object k, Object[] tab) {
+        final int len = tab.length;
+        if (len == 0)
+            return ~0;
+        for (int i = hash(k, len), start = i;;){
+            final Object item = tab[i];
+            if (item == null)
+                return ~i;
+            if (k == item || k.equals(item))
+                return i;
+            if (start == (i = nextKeyIndex(i, len)))
+                return ~i;
+        }
+    }
+
+    private static Object find(Object k, Object[] tab) {
+        final int len = tab.length;
+        if (len == 0)
+            return null;
+        for (int i = hash(k, len), start = i;;){
+            final Object item = tab[i];
+            if (k == item || k.equals(item))
+                return tab[i + 1];
+            if (item == null || start == (i = nextKeyIndex(i, len)))
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        final Object k = Objects.requireNonNull(key);
+        Object v = find(k, table);
+        if (v == null){
+            final Object[] old = this.old;
+            if (old != null)
+                v = find(k, old);
+        }
+        return (V) v;
+    }
+
+    @Override public boolean containsKey(Object key) {return get(key) != null;}
+    @Override public int size() {return size;}
+    @Override public boolean isEmpty() {return size == 0;}
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (value == null)
+            return false;
+        return containsValue(value, table) || (old != null && containsValue(value, old));
+    }
+
+    private static boolean containsValue(Object value, Object[] tab) {
+        for (int i = 1; i < tab.length; i += 2){
+            if (value.equals(tab[i]))
+                return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        if (old != null){
+            migrate(MIGRATE_SLOTS);
+            final Object[] old = this.old;
+            if (old != null){
+                final int i = indexOf(k, old);
+                if (i >= 0){//updated in place; the old table just gets no new keys
+                    final V prev = (V) old[i + 1];
+                    old[i + 1] = value;
+                    return prev;
+                }
+            }
+        }
+        for (;;){
+            final Object[] tab = table;
+            int i = indexOf(k, tab);
+            if (i >= 0){
+                final V prev = (V) tab[i + 1];
+                if (prev != value)
+                    tab[i + 1] = value;
+                return prev;
+            }
+            final int s = size + 1;
+            if ((tab.length == 0 || CompactHashMap.needGrow(tab.length, s)) && resize())
+                continue;
+            i = ~i;
+            if (tab[i] != null)
+                throw new IllegalStateException("Capacity exhausted.");
+            tab[i] = k;
+            tab[i + 1] = value;
+            size = s;
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the value in place with no migration step (the iterators are not disturbed), or puts the key if absent
+     */
+    private void update(K key, V value) {
+        int i = indexOf(key, table);
+        if (i >= 0){
+            table[i + 1] = value;
+            return;
+        }
+        final Object[] old = this.old;
+        if (old != null && (i = indexOf(key, old)) >= 0){
+            old[i + 1] = value;
+            return;
+        }
+        put(key, value);
+    }
+
+    /**
+     * Starts migrating to a table of twice the length, the rest of a running migration (if any) is completed first
+     * @return false if the table cannot grow anymore
+     */
+    private boolean resize() {
+        if (old != null)
+            migrate(Integer.MAX_VALUE);
+        final Object[] tab = table;
+        final int len = tab.length;
+        if (len == MAXIMUM_CAPACITY << 1){
+            if (size == MAXIMUM_CAPACITY - 1)
+                throw new IllegalStateException("Capacity exhausted.");
+            return false;
+        }
+        table = new Object[Math.max(2, len << 1)];
+        int end = 0;
+        while (end < len && tab[end] != null)
+            end += 2;
+        if (end == len){//a full (tiny) table, no empty slot to start at
+            for (int i = 0; i < len; i += 2)
+                place(tab[i], tab[i + 1], table);
+            return true;
+        }
+        old = tab;
+        migrateEnd = end;
+        migrateAt = nextKeyIndex(end, len);
+        return true;
+    }
+
+    /**
+     * Moves the clusters of the old table, starting at migrateAt, until at least slots slots are processed;
+     * it stops right after an empty slot only, so the cluster being moved is never split.
+     */
+    private void migrate(int slots) {
+        final Object[] old = this.old, tab = table;
+        final int len = old.length, end = migrateEnd;
+        int i = migrateAt;
+        for (;;){
+            final Object k = old[i];
+            if (k != null){
+                place(k, old[i + 1], tab);
+                old[i] = null;
+                old[i + 1] = null;
+                i = nextKeyIndex(i, len);
+                slots--;
+                continue;
+            }
+            if (i == end){//the whole table is done
+                this.old = null;
+                return;
+            }
+            i = nextKeyIndex(i, len);
+            if (--slots <= 0)
+                break;
+        }
+        migrateAt = i;
+    }
+
+    /**
+     * Trusted insert of a key known to be absent, in a table known to have room for it
+     */
+    private static void place(Object key, Object value, Object[] tab) {
+        final int len = tab.length;
+        int i = hash(key, len);
+        while (tab[i] != null)
+            i = nextKeyIndex(i, len);
+        tab[i] = key;
+        tab[i + 1] = value;
+    }
+
+    @Override
+    public V remove(Object key) {
+        final Object k = Objects.requireNonNull(key);
+        if (old != null)
+            migrate(MIGRATE_SLOTS);
+        int i = indexOf(k, table);
+        if (i >= 0)
+            return removeAt(i, table, null);
+        final Object[] old = this.old;
+        if (old != null && (i = indexOf(k, old)) >= 0)
+            return removeAt(i, old, null);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V removeAt(int i, Object[] tab, Traverser traverser) {
+        final V prev = (V) tab[i + 1];
+        tab[i] = null;
+        tab[i + 1] = null;
+        size--;
+        closeDeletion(i, tab, traverser);
+        return prev;
+    }
+
+    /**
+     * Knuth Section 6.4 Algorithm R, see CompactHashMap.closeDeletion. The entries move within their cluster only,
+     * so the old table stays in whole clusters past migrateAt.
+     * @param traverser if not null, gets notified of the entries moved from the front of the table to its tail (wrapped clusters)
+     */
+    private void closeDeletion(int del, Object[] tab, Traverser traverser) {
+        final int len = tab.length;
+        Object item;
+        for (int i = nextKeyIndex(del, len); (item = tab[i]) != null; i = nextKeyIndex(i, len)){//del is empty, so the loop ends
+            final int h = hash(item, len);
+            if ((i < h && (h <= del || del <= i)) || (h <= del && del <= i)) {
+                if (i < del && traverser != null)
+                    traverser.wrapped(item);
+                tab[del] = item;
+                tab[del + 1] = tab[i + 1];
+                tab[i] = null;
+                tab[i + 1] = null;
+                del = i;
+            }
+        }
+    }
+
+    /**
+     * Grows the table (if needed) to hold expectedSize elements without further resizing; a running migration is completed.
+     */
+    public void ensureCapacity(int expectedSize) {
+        if (old != null)
+            migrate(Integer.MAX_VALUE);
+        final int len = lengthFor(expectedSize);
+        final Object[] tab = table;
+        if (len <= tab.length)
+            return;
+        final Object[] newTable = new Object[len];
+        for (int i = 0; i < tab.length; i += 2){
+            if (tab[i] != null)
+                place(tab[i], tab[i + 1], newTable);
+        }
+        table = newTable;
+    }
+
+    @Override
+    public void clear() {
+        table = EMPTY;
+        old = null;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        for (Object[] tab : tables()){
+            for (int i = 0; i < tab.length; i += 2){
+                if (tab[i] != null)
+                    action.accept((K) tab[i], (V) tab[i + 1]);
+            }
+        }
+    }
+
+    private Object[][] tables() {
+        final Object[] old = this.old;
+        return old == null ? new Object[][]{table} : new Object[][]{old, table};
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIter();
+            }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getKey() == null ? null : get(e.getKey());
+                return v != null && v.equals(e.getValue());
+            }
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return e.getKey() != null && IncrementalCompactHashMap.this.remove(e.getKey(), e.getValue());
+            }
+            @Override public void clear() {IncrementalCompactHashMap.this.clear();}
+            @Override public int size() {return size;}
+        };
+    }
+
+    /**
+     * Index walk over the old table (if any), then the new one; the removal of the current entry is in place and does not migrate.
+     * See CompactHashMap.Traverser: the backward shift moves entries to lower indexes only, except for the clusters wrapping around the end
+     * of the table - such keys are remembered and skipped till the end of that table.
+     */
+    private class Traverser{
+        final Object[][] tables = tables();
+        int t;//index in tables
+        Object[] tab = tables[0];
+        int next = seek(0);//index of the next entry, tab.length when exhausted
+        Object[] wrapped;//keys moved from the front to the tail of the table
+        int wrappedCount;
+
+        final int seek(int i){
+            for (;;){
+                final Object[] tab = this.tab;
+                for (Object k; i < tab.length; i+=2){
+                    if ((k = tab[i]) != null && (wrappedCount == 0 || !skip(k)))
+                        return i;
+                }
+                if (t + 1 == tables.length)
+                    return i;
+                this.tab = tables[++t];
+                wrappedCount = 0;
+                i = 0;
+            }
+        }
+
+        private boolean skip(Object k){//kept for the walk of the entire table
+            final Object[] w = wrapped;
+            for (int i=0; i<wrappedCount; i++){
+                if (w[i] == k)
+                    return true;
+            }
+            return false;
+        }
+
+        final void wrapped(Object k){
+            if (wrapped == null)
+                wrapped = new Object[4];
+            else if (wrappedCount == wrapped.length)
+                wrapped = Arrays.copyOf(wrapped, wrappedCount * 2);
+            wrapped[wrappedCount++] = k;
+        }
+
+        final int nextIdx(){
+            final int i = next;
+            if (i >= tab.length)
+                throw new NoSuchElementException();
+            next = seek(i + 2);
+            return i;
+        }
+
+        final void removeCurrent(Object[] tab, int i){
+            if (tab != table && tab != old){//no longer the map's, resized or migrated meanwhile
+                final Object k = tab[i];
+                if (k != null)
+                    IncrementalCompactHashMap.this.remove(k);
+                return;
+            }
+            if (tab != this.tab){//the walk is past that table
+                removeAt(i, tab, null);
+                return;
+            }
+            removeAt(i, tab, this);
+            next = seek(i);//the removed slot may hold a shifted entry now
+        }
+    }
+
+    private class EntryIter extends Traverser implements Iterator<Map.Entry<K, V>>{
+        Object[] lastTab;
+        int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < tab.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<K, V> next() {
+            final Object[] tab = this.tab;
+            final int i = nextIdx();
+            lastTab = tab;
+            last = i;
+            return new WriteThroughEntry((K) tab[i], (V) tab[i + 1]);
+        }
+
+        @Override
+        public void remove() {
+            final int i = last;
+            if (i < 0)
+                throw new IllegalStateException("not started/already removed");
+            last = -1;
+            removeCurrent(lastTab, i);
+        }
+    }
+
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V>{
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            update(getKey(), Objects.requireNonNull(value));
+            return super.setValue(value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public IncrementalCompactHashMap<K, V> clone() {
+        try{
+            final IncrementalCompactHashMap<K, V> m = (IncrementalCompactHashMap<K, V>) super.clone();
+            if (m.table != EMPTY)
+                m.table = m.table.clone();
+            if (m.old != null)
+                m.old = m.old.clone();
+            return m;
+        }catch (CloneNotSupportedException _ex) {
+            throw new AssertionError();
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        s.writeInt(size);
+        for (Object[] tab : tables()){
+            for (int i=0; i<tab.length; i+=2){
+                if (tab[i] != null) {
+                    s.writeObject(tab[i]);
+                    s.writeObject(tab[i+1]);
+                }
+            }
+        }
+    }
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        clear();
+        final int size = s.readInt();
+        if (size < 0 || size >= MAXIMUM_CAPACITY)
+            throw new java.io.InvalidObjectException("Illegal size: "+size);
+        ensureCapacity(size);
+        for (int i=0; i<size; i++){
+            put((K) s.readObject(), (V) s.readObject());
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+* Primitive long keyed flavor of {@link CompactHashMap}: no boxing of the keys and no pointer chasing while probing, the keys live in a long[] of their own.
+* Open address/pow2 capacity, linear probe, the same fill factor curve and backward shift deletion.
+* Zero marks an empty slot, so the zero key (if present) is held in a field outside the table. No null values.
+*
+* IntObjCompactMap is the same code with int keys.
+*
+* @author Stanimir Simeonoff
+*/
+public class LongObjCompactMap<V> implements Cloneable, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final long[] NO_KEYS = {};
+    private static final Object[] EMPTY = {};
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+
+    transient int size;//the zero key included
+    transient long[] keys = NO_KEYS;//0 - empty slot
+    transient Object[] values = EMPTY;
+    transient Object zeroValue;//the value of the zero key, null if none
+
+    @FunctionalInterface
+    public interface LongObjConsumer<V>{
+        void accept(long key, V value);
+    }
+
+    public LongObjCompactMap() {
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public LongObjCompactMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (expectedSize > 0)
+            rehash(capacityFor(expectedSize));
+    }
+
+    private static int hash(long key, int len) {
+        return CompactHashMap.smear(Long.hashCode(key)) & (len - 1);
+    }
+
+    private static int nextIndex(int i, int len) {
+        return (i + 1) & (len - 1);
+    }
+
+    private static boolean needGrow(int capacity, int size) {
+        return CompactHashMap.needGrow(capacity << 1, size);//the same curve, that one takes the length of the interleaved table
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = 1;
+        while (capacity < MAXIMUM_CAPACITY && needGrow(capacity, size))
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /**
+     * @return the slot of the key, or ~slot of the free one it should go to (the home slot, if the table is full)
+     */
+    private static int indexOf(long key, long[] keys) {//key is not zero
+        final int len = keys.length;
+        for (int i = hash(key, len), start = i;;){
+            final long k = keys[i];
+            if (k == key)
+                return i;
+            if (k == 0 || (i = nextIndex(i, len)) == start)
+                return ~i;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0)
+            return (V) zeroValue;
+        final long[] keys = this.keys;
+        if (keys.length == 0)
+            return null;
+        final int i = indexOf(key, keys);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public V getOrDefault(long key, V defaultValue) {
+        final V v = get(key);
+        return v == null ? defaultValue : v;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        Objects.requireNonNull(value);
+        if (key == 0){
+            final V old = (V) zeroValue;
+            zeroValue = value;
+            if (old == null)
+                size++;
+            return old;
+        }
+        long[] keys = this.keys;
+        if (keys.length == 0)
+            rehash(1);
+        int i = indexOf(key, keys = this.keys);
+        if (i >= 0){
+            final V old = (V) values[i];
+            values[i] = value;
+            return old;
+        }
+        if (needGrow(keys.length, size + 1) && keys.length < MAXIMUM_CAPACITY){//the zero key is counted too, it only grows a bit earlier
+            rehash(keys.length << 1);
+            i = indexOf(key, keys = this.keys);
+        }
+        i = ~i;
+        if (keys[i] != 0)
+            throw new IllegalStateException("Capacity exhausted.");
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0){
+            final V old = (V) zeroValue;
+            if (old != null){
+                zeroValue = null;
+                size--;
+            }
+            return old;
+        }
+        final long[] keys = this.keys;
+        if (keys.length == 0)
+            return null;
+        final int i = indexOf(key, keys);
+        if (i < 0)
+            return null;
+        final Object[] values = this.values;
+        final V old = (V) values[i];
+        size--;
+        keys[i] = 0;
+        values[i] = null;
+        closeDeletion(i, keys, values);
+        return old;
+    }
+
+    /**
+     * Knuth Section 6.4 Algorithm R, see CompactHashMap.closeDeletion
+     */
+    private static void closeDeletion(int del, long[] keys, Object[] values) {
+        final int len = keys.length;
+        long k;
+        for (int i = nextIndex(del, len); (k = keys[i]) != 0; i = nextIndex(i, len)){//del is empty, so the loop ends
+            final int h = hash(k, len);
+            if ((i < h && (h <= del || del <= i)) || (h <= del && del <= i)) {
+                keys[del] = k;
+                values[del] = values[i];
+                keys[i] = 0;
+                values[i] = null;
+                del = i;
+            }
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        final long[] keys = new long[newCapacity];
+        final Object[] values = new Object[newCapacity];
+        for (int j = 0; j < oldKeys.length; j++){
+            final long k = oldKeys[j];
+            if (k == 0)
+                continue;
+            int i = hash(k, newCapacity);
+            while (keys[i] != 0)//no equals, the keys are distinct
+                i = nextIndex(i, newCapacity);
+            keys[i] = k;
+            values[i] = oldValues[j];
+        }
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Grows the table (if needed) to hold expectedSize elements without further resizing
+     */
+    public void ensureCapacity(int expectedSize) {
+        final int capacity = capacityFor(expectedSize);
+        if (capacity > keys.length)
+            rehash(capacity);
+    }
+
+    public void clear() {
+        keys = NO_KEYS;
+        values = EMPTY;
+        zeroValue = null;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(LongObjConsumer<? super V> action) {
+        Objects.requireNonNull(action);
+        if (zeroValue != null)
+            action.accept(0, (V) zeroValue);
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        for (int i = 0; i < keys.length; i++){
+            if (keys[i] != 0)
+                action.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    public int hashCode() {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        int h = zeroValue == null ? 0 : zeroValue.hashCode();
+        for (int i = 0; i < keys.length; i++){//the same as Map<Long, V>
+            if (keys[i] != 0)
+                h += Long.hashCode(keys[i]) ^ values[i].hashCode();
+        }
+        return h;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof LongObjCompactMap))
+            return false;
+        final LongObjCompactMap<?> m = (LongObjCompactMap<?>) o;
+        if (m.size != size || !Objects.equals(zeroValue, m.zeroValue))
+            return false;
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        for (int i = 0; i < keys.length; i++){
+            if (keys[i] != 0 && !values[i].equals(m.get(keys[i])))
+                return false;
+        }
+        return true;
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder().append('{');
+        forEach((k, v) -> sb.append(sb.length() > 1 ? ", " : "").append(k).append('=').append(v == this ? "(this Map)" : v));
+        return sb.append('}').toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public LongObjCompactMap<V> clone(){
+        try{
+            LongObjCompactMap<V> m = (LongObjCompactMap<V>) super.clone();
+            if (m.keys != NO_KEYS){
+                m.keys = m.keys.clone();
+                m.values = m.values.clone();
+            }
+            return m;
+        }catch (CloneNotSupportedException _ex) {
+            throw new AssertionError();
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        s.writeInt(size);
+        if (zeroValue != null){
+            s.writeLong(0);
+            s.writeObject(zeroValue);
+        }
+        final long[] keys = this.keys;
+        for (int i=0; i<keys.length; i++){
+            if (keys[i] != 0) {
+                s.writeLong(keys[i]);
+                s.writeObject(values[i]);
+            }
+        }
+    }
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        clear();
+        int size  = s.readInt();
+        if (size <= 0){
+            return;
+        }
+        ensureCapacity(size);
+        for (int i=0; i<size; i++){
+            put(s.readLong(), (V) s.readObject());
+        }
+    }
+}
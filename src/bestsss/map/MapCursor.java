@@ -0,0 +1,50 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * A mutable, reusable cursor over the mappings of a map. Unlike {@link java.util.Map#entrySet()} iterators, 
+ * the cursor does not create any objects per step; the current key and value are read directly from the backing storage.
+ * <pre>
+ * for (MapCursor&lt;K, V&gt; c = map.cursor(); c.advance();){
+ *     consume(c.key(), c.value());
+ * }
+ * </pre>
+ * 
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ * @author Stanimir Simeonoff
+ */
+public interface MapCursor<K, V> {
+    /**
+     * Moves the cursor to the next mapping
+     * @return true if the cursor is positioned on a mapping, false if there are no more mappings
+     */
+    boolean advance();
+
+    /**
+     * @return the key of the current mapping
+     * @throws IllegalStateException if {@link #advance()} has not been called or the mapping has been removed
+     */
+    K key();
+
+    /**
+     * @return the value of the current mapping
+     * @throws IllegalStateException if {@link #advance()} has not been called or the mapping has been removed
+     */
+    V value();
+
+    /**
+     * Replaces the value of the current mapping
+     * @return the previous value
+     * @throws IllegalStateException if {@link #advance()} has not been called or the mapping has been removed
+     */
+    V setValue(V value);
+
+    /**
+     * Removes the current mapping; the cursor has to be advanced prior accessing the next mapping.
+     * @throws IllegalStateException if {@link #advance()} has not been called or the mapping has been removed already
+     */
+    void remove();
+}
@@ -0,0 +1,302 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+* Primitive int valued flavor of {@link CompactHashMap}: no boxing of the values, they live in an int[] next to the keys.
+* Open address/pow2 capacity, linear probe, the same fill factor curve and backward shift deletion. No null keys.
+* The absent keys read as zero (or the specified default), e.g. {@link #addTo(Object, int)} works as a counter.
+*
+* ObjLongCompactMap is the same code with long values.
+*
+* @author Stanimir Simeonoff
+*/
+public class ObjIntCompactMap<K> implements Cloneable, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final Object[] EMPTY = {};
+    private static final int[] NO_VALUES = {};
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+
+    transient int size;
+    transient Object[] keys = EMPTY;//null - empty slot
+    transient int[] values = NO_VALUES;
+
+    public ObjIntCompactMap() {
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public ObjIntCompactMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (expectedSize > 0)
+            rehash(capacityFor(expectedSize));
+    }
+
+    private static int hash(Object key, int len) {
+        return CompactHashMap.smear(key.hashCode()) & (len - 1);
+    }
+
+    private static int nextIndex(int i, int len) {
+        return (i + 1) & (len - 1);
+    }
+
+    private static boolean needGrow(int capacity, int size) {
+        return CompactHashMap.needGrow(capacity << 1, size);//the same curve, that one takes the length of the interleaved table
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = 1;
+        while (capacity < MAXIMUM_CAPACITY && needGrow(capacity, size))
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /**
+     * @return the slot of the key, or ~slot of the free one it should go to (the home slot, if the table is full)
+     */
+    private static int indexOf(Object key, Object[] keys) {
+        final int len = keys.length;
+        for (int i = hash(key, len), start = i;;){
+            final Object k = keys[i];
+            if (k == key || (k != null && key.equals(k)))
+                return i;
+            if (k == null || (i = nextIndex(i, len)) == start)
+                return ~i;
+        }
+    }
+
+    /**
+     * @return the value of the key, zero if absent
+     */
+    public int get(Object key) {
+        return getOrDefault(key, 0);
+    }
+
+    public int getOrDefault(Object key, int defaultValue) {
+        Objects.requireNonNull(key);
+        final Object[] keys = this.keys;
+        if (keys.length == 0)
+            return defaultValue;
+        final int i = indexOf(key, keys);
+        return i < 0 ? defaultValue : values[i];
+    }
+
+    public boolean containsKey(Object key) {
+        Objects.requireNonNull(key);
+        return keys.length != 0 && indexOf(key, keys) >= 0;
+    }
+
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    /**
+     * @return the previous value of the key, zero if absent
+     */
+    public int put(K key, int value) {
+        final int i = slotFor(Objects.requireNonNull(key));
+        final int old = values[i];
+        values[i] = value;
+        return old;
+    }
+
+    /**
+     * Adds delta to the value of the key, an absent key starts from zero
+     * @return the new value
+     */
+    public int addTo(K key, int delta) {
+        final int i = slotFor(Objects.requireNonNull(key));
+        return values[i] += delta;
+    }
+
+    /**
+     * @return the slot of the key, adds the key with a zero value if absent
+     */
+    private int slotFor(Object key) {
+        Object[] keys = this.keys;
+        if (keys.length == 0)
+            rehash(1);
+        int i = indexOf(key, keys = this.keys);
+        if (i >= 0)
+            return i;
+        if (needGrow(keys.length, size + 1) && keys.length < MAXIMUM_CAPACITY){
+            rehash(keys.length << 1);
+            i = indexOf(key, keys = this.keys);
+        }
+        i = ~i;
+        if (keys[i] != null)
+            throw new IllegalStateException("Capacity exhausted.");
+        keys[i] = key;
+        size++;
+        return i;
+    }
+
+    /**
+     * @return the removed value, zero if absent
+     */
+    public int remove(Object key) {
+        Objects.requireNonNull(key);
+        final Object[] keys = this.keys;
+        if (keys.length == 0)
+            return 0;
+        final int i = indexOf(key, keys);
+        if (i < 0)
+            return 0;
+        final int[] values = this.values;
+        final int old = values[i];
+        size--;
+        keys[i] = null;
+        values[i] = 0;
+        closeDeletion(i, keys, values);
+        return old;
+    }
+
+    /**
+     * Knuth Section 6.4 Algorithm R, see CompactHashMap.closeDeletion
+     */
+    private static void closeDeletion(int del, Object[] keys, int[] values) {
+        final int len = keys.length;
+        Object k;
+        for (int i = nextIndex(del, len); (k = keys[i]) != null; i = nextIndex(i, len)){//del is empty, so the loop ends
+            final int h = hash(k, len);
+            if ((i < h && (h <= del || del <= i)) || (h <= del && del <= i)) {
+                keys[del] = k;
+                values[del] = values[i];
+                keys[i] = null;
+                values[i] = 0;
+                del = i;
+            }
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        final Object[] oldKeys = keys;
+        final int[] oldValues = values;
+        final Object[] keys = new Object[newCapacity];
+        final int[] values = new int[newCapacity];
+        for (int j = 0; j < oldKeys.length; j++){
+            final Object k = oldKeys[j];
+            if (k == null)
+                continue;
+            int i = hash(k, newCapacity);
+            while (keys[i] != null)//no equals, the keys are distinct
+                i = nextIndex(i, newCapacity);
+            keys[i] = k;
+            values[i] = oldValues[j];
+        }
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Grows the table (if needed) to hold expectedSize elements without further resizing
+     */
+    public void ensureCapacity(int expectedSize) {
+        final int capacity = capacityFor(expectedSize);
+        if (capacity > keys.length)
+            rehash(capacity);
+    }
+
+    public void clear() {
+        keys = EMPTY;
+        values = NO_VALUES;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(java.util.function.ObjIntConsumer<? super K> action) {
+        Objects.requireNonNull(action);
+        final Object[] keys = this.keys;
+        final int[] values = this.values;
+        for (int i = 0; i < keys.length; i++){
+            if (keys[i] != null)
+                action.accept((K) keys[i], values[i]);
+        }
+    }
+
+    public int hashCode() {
+        final Object[] keys = this.keys;
+        final int[] values = this.values;
+        int h = 0;
+        for (int i = 0; i < keys.length; i++){//the same as Map<K, Integer>
+            if (keys[i] != null)
+                h += keys[i].hashCode() ^ Integer.hashCode(values[i]);
+        }
+        return h;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof ObjIntCompactMap))
+            return false;
+        final ObjIntCompactMap<?> m = (ObjIntCompactMap<?>) o;
+        if (m.size != size)
+            return false;
+        final Object[] keys = this.keys;
+        final int[] values = this.values;
+        for (int i = 0; i < keys.length; i++){
+            final Object k = keys[i];
+            if (k == null)
+                continue;
+            final int j = m.keys.length == 0 ? -1 : indexOf(k, m.keys);
+            if (j < 0 || m.values[j] != values[i])
+                return false;
+        }
+        return true;
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder().append('{');
+        forEach((k, v) -> sb.append(sb.length() > 1 ? ", " : "").append(k == this ? "(this Map)" : k).append('=').append(v));
+        return sb.append('}').toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public ObjIntCompactMap<K> clone(){
+        try{
+            ObjIntCompactMap<K> m = (ObjIntCompactMap<K>) super.clone();
+            if (m.keys != EMPTY){
+                m.keys = m.keys.clone();
+                m.values = m.values.clone();
+            }
+            return m;
+        }catch (CloneNotSupportedException _ex) {
+            throw new AssertionError();
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        s.writeInt(size);
+        final Object[] keys = this.keys;
+        for (int i=0; i<keys.length; i++){
+            if (keys[i] != null) {
+                s.writeObject(keys[i]);
+                s.writeInt(values[i]);
+            }
+        }
+    }
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        clear();
+        int size  = s.readInt();
+        if (size <= 0){
+            return;
+        }
+        ensureCapacity(size);
+        for (int i=0; i<size; i++){
+            put((K) s.readObject(), s.readInt());
+        }
+    }
+}
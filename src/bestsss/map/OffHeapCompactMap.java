@@ -0,0 +1,541 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+* Off-heap flavor of {@link CompactHashMap} for (very) large maps: the garbage collector sees a few dozen direct ByteBuffers, regardless the number of entries.
+* The keys and values are stored in their binary form (see {@link Codec}), so get() decodes a fresh value on each call.
+*
+* The slot table keeps the algorithm of CompactHashMap - open address/pow2 capacity, linear probe, the same fill factor curve and backward shift deletion.
+* Each slot is a long: the smeared hash of the key in the high 32 bits and a reference to its record in the arena in the low ones, 0 marks an empty slot.
+* The hash is compared before the key bytes, and the table grows without reading the keys at all. The slot table is split into 128MB pages.
+*
+* The records (length prefixes for the variable width codecs, key bytes, value bytes) are appended to an arena of direct buffers, each up to 1GB, 8 byte aligned.
+* Replacing a value of the same encoded length happens in place; otherwise the old record becomes garbage, which is dropped by {@link #compact()},
+* automatically once it exceeds half of the arena. The arena holds up to ~20GB of records. Mind -XX:MaxDirectMemorySize.
+* The direct memory is released by the garbage collector, once the map (or {@link #clear()}) drops the buffers.
+*
+* The keys are compared and hashed by their encoded bytes. No null keys and values, not thread safe.
+*
+* The map can be persisted with {@link #writeSnapshot(Path)} - the slot table and the arena are written as they are,
+* and {@link #openSnapshot(Path, Codec, Codec)} maps them back read-only, with no rehashing nor decoding. The snapshot is portable (big endian).
+*
+* @author Stanimir Simeonoff
+*/
+public class OffHeapCompactMap<K, V>{
+    private static final ByteBuffer[] NONE = {};
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+    private static final int PAGE_SHIFT = 24;//slots per page: 16M, i.e. 128MB
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+    private static final int CHUNK_SHIFT = 30;//the largest arena chunk
+    private static final int OFFSET_BITS = 27;//reference: chunk index in the high 5 bits, offset/8 in the low 27
+    private static final int MAX_CHUNKS = 1 << (32 - OFFSET_BITS);
+    private static final int FIRST_CHUNK = 1 << 16;
+    private static final long MAGIC = 0x434D41505348_0001L;//"CMAPSH", version 1
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int keyWidth;
+    private final int valueWidth;
+    private final int header;//length prefixes of the record
+
+    int size;
+    int capacity;
+    ByteBuffer[] pages = NONE;//the slot table
+    ByteBuffer[] chunks = NONE;//the arena
+    int top;//the first free byte of the last chunk
+    long used;//bytes taken by records, the garbage included
+    long garbage;
+    private boolean readOnly;//a mapped snapshot
+
+    public OffHeapCompactMap(Codec<K> keyCodec, Codec<V> valueCodec) {
+        this(keyCodec, valueCodec, 0);
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing the slot table
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public OffHeapCompactMap(Codec<K> keyCodec, Codec<V> valueCodec, int expectedSize) {
+        this.keyCodec = Objects.requireNonNull(keyCodec);
+        this.valueCodec = Objects.requireNonNull(valueCodec);
+        this.keyWidth = keyCodec.width();
+        this.valueWidth = valueCodec.width();
+        this.header = (keyWidth < 0 ? 4 : 0) + (valueWidth < 0 ? 4 : 0);
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (expectedSize > 0)
+            resize(capacityFor(expectedSize));
+    }
+
+    private static boolean needGrow(int capacity, int size) {
+        return CompactHashMap.needGrow(capacity << 1, size);//the same curve, that one takes the length of the interleaved table
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = 1;
+        while (capacity < MAXIMUM_CAPACITY && needGrow(capacity, size))
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static long slot(ByteBuffer[] pages, int i) {
+        return pages[i >>> PAGE_SHIFT].getLong((i & PAGE_MASK) << 3);
+    }
+
+    private static void setSlot(ByteBuffer[] pages, int i, long slot) {
+        pages[i >>> PAGE_SHIFT].putLong((i & PAGE_MASK) << 3, slot);
+    }
+
+    private static long slot(int hash, int ref) {
+        return (long) hash << 32 | ref & 0xFFFFFFFFL;
+    }
+
+    private ByteBuffer chunk(int ref) {
+        return chunks[ref >>> OFFSET_BITS];
+    }
+
+    private static int offset(int ref) {
+        return (ref & (1 << OFFSET_BITS) - 1) << 3;
+    }
+
+    private int keyLength(ByteBuffer c, int off) {
+        return keyWidth >= 0 ? keyWidth : c.getInt(off);
+    }
+
+    private int valueLength(ByteBuffer c, int off) {
+        return valueWidth >= 0 ? valueWidth : c.getInt(off + (keyWidth < 0 ? 4 : 0));
+    }
+
+    private int recordSize(int keyLength, int valueLength) {
+        return (header + keyLength + valueLength + 7) & ~7;
+    }
+
+    private static int hash(ByteBuffer b, int len) {
+        int h = len, i = 0;
+        for (; i + 8 <= len; i += 8)
+            h = 31 * h + Long.hashCode(b.getLong(i));
+        for (; i < len; i++)
+            h = 31 * h + b.get(i);
+        return CompactHashMap.smear(h);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ByteBuffer encodeKey(Object key) {
+        final K k = (K) Objects.requireNonNull(key);
+        final int len = keyCodec.sizeOf(k);
+        if (keyWidth >= 0 && len != keyWidth)
+            throw new IllegalArgumentException("Key length: "+len+", expected: "+keyWidth);
+        final ByteBuffer b = ByteBuffer.wrap(new byte[len]);
+        keyCodec.write(k, b, 0);
+        return b;
+    }
+
+    private boolean keyEquals(int ref, ByteBuffer key, int len) {
+        final ByteBuffer c = chunk(ref);
+        final int off = offset(ref);
+        if (keyLength(c, off) != len)
+            return false;
+        int i = 0;
+        for (final int p = off + header; i + 8 <= len; i += 8){
+            if (c.getLong(p + i) != key.getLong(i))
+                return false;
+        }
+        for (final int p = off + header; i < len; i++){
+            if (c.get(p + i) != key.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot of the key, or ~slot of the free one it should go to (the home slot, if the table is full)
+     */
+    private int indexOf(ByteBuffer key, int len, int hash) {
+        final ByteBuffer[] pages = this.pages;
+        final int mask = capacity - 1;
+        for (int i = hash & mask, start = i;;){
+            final long s = slot(pages, i);
+            if (s == 0)
+                return ~i;
+            if ((int) (s >>> 32) == hash && keyEquals((int) s, key, len))
+                return i;
+            if ((i = (i + 1) & mask) == start)
+                return ~i;
+        }
+    }
+
+    public V get(Object key) {
+        if (size == 0)
+            return null;
+        final ByteBuffer k = encodeKey(key);
+        final int len = k.capacity();
+        final int i = indexOf(k, len, hash(k, len));
+        if (i < 0)
+            return null;
+        final int ref = (int) slot(pages, i);
+        return readValue(chunk(ref), offset(ref), len);
+    }
+
+    public boolean containsKey(Object key) {
+        if (size == 0)
+            return false;
+        final ByteBuffer k = encodeKey(key);
+        final int len = k.capacity();
+        return indexOf(k, len, hash(k, len)) >= 0;
+    }
+
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    public V put(K key, V value) {
+        checkWritable();
+        Objects.requireNonNull(value);
+        final ByteBuffer k = encodeKey(key);
+        final int len = k.capacity();
+        final int hash = hash(k, len);
+        final int valueLength = valueCodec.sizeOf(value);
+        if (valueWidth >= 0 && valueLength != valueWidth)
+            throw new IllegalArgumentException("Value length: "+valueLength+", expected: "+valueWidth);
+        if (capacity == 0)
+            resize(1);
+
+        int i = indexOf(k, len, hash);
+        if (i >= 0){
+            final int ref = (int) slot(pages, i);
+            final ByteBuffer c = chunk(ref);
+            final int off = offset(ref);
+            final V old = readValue(c, off, len);
+            final int oldLength = valueLength(c, off);
+            if (oldLength == valueLength){
+                valueCodec.write(value, c, off + header + len);//in place
+                return old;
+            }
+            garbage += recordSize(len, oldLength);
+            setSlot(pages, i, slot(hash, write(k, len, value, valueLength)));
+            if (needCompact())
+                compact();
+            return old;
+        }
+        if (needGrow(capacity, size + 1) && capacity < MAXIMUM_CAPACITY){
+            resize(capacity << 1);
+            i = indexOf(k, len, hash);
+        }
+        i = ~i;
+        if (slot(pages, i) != 0)
+            throw new IllegalStateException("Capacity exhausted.");
+        setSlot(pages, i, slot(hash, write(k, len, value, valueLength)));
+        size++;
+        return null;
+    }
+
+    public V remove(Object key) {
+        checkWritable();
+        if (size == 0)
+            return null;
+        final ByteBuffer k = encodeKey(key);
+        final int len = k.capacity();
+        final int i = indexOf(k, len, hash(k, len));
+        if (i < 0)
+            return null;
+        final int ref = (int) slot(pages, i);
+        final ByteBuffer c = chunk(ref);
+        final int off = offset(ref);
+        final V old = readValue(c, off, len);
+        garbage += recordSize(len, valueLength(c, off));
+        size--;
+        setSlot(pages, i, 0);
+        closeDeletion(i);
+        if (size == 0)
+            clear();
+        else if (needCompact())
+            compact();
+        return old;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) {
+        ensureCapacity(size + m.size());
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
+            put(e.getKey(), e.getValue());
+    }
+
+    private void checkWritable() {
+        if (readOnly)
+            throw new UnsupportedOperationException("Read-only snapshot");
+    }
+
+    private V readValue(ByteBuffer c, int off, int keyLength) {
+        return valueCodec.read(c, off + header + keyLength, valueLength(c, off));
+    }
+
+    /**
+     * Knuth Section 6.4 Algorithm R, see CompactHashMap.closeDeletion; the homes come from the hashes in the slots
+     */
+    private void closeDeletion(int del) {
+        final ByteBuffer[] pages = this.pages;
+        final int mask = capacity - 1;
+        long s;
+        for (int i = (del + 1) & mask; (s = slot(pages, i)) != 0; i = (i + 1) & mask){//del is empty, so the loop ends
+            final int h = (int) (s >>> 32) & mask;
+            if ((i < h && (h <= del || del <= i)) || (h <= del && del <= i)) {
+                setSlot(pages, del, s);
+                setSlot(pages, i, 0);
+                del = i;
+            }
+        }
+    }
+
+    /**
+     * Appends a new record to the arena
+     * @return the reference to the record
+     */
+    private int write(ByteBuffer key, int keyLength, V value, int valueLength) {
+        final int ref = allocate(recordSize(keyLength, valueLength));
+        final ByteBuffer c = chunk(ref);
+        final int off = offset(ref);
+        if (keyWidth < 0)
+            c.putInt(off, keyLength);
+        if (valueWidth < 0)
+            c.putInt(off + (keyWidth < 0 ? 4 : 0), valueLength);
+        final ByteBuffer dst = c.duplicate();
+        dst.position(off + header);
+        dst.put(key.array(), 0, keyLength);
+        valueCodec.write(value, c, off + header + keyLength);
+        return ref;
+    }
+
+    private int allocate(int recordSize) {
+        if (recordSize > (1 << CHUNK_SHIFT) - 8 || recordSize < 0)
+            throw new IllegalArgumentException("Record too large: "+recordSize);
+        final int n = chunks.length;
+        if (n == 0 || top + recordSize > chunks[n - 1].capacity()){
+            if (n == MAX_CHUNKS)
+                throw new IllegalStateException("Arena exhausted.");
+            int chunkSize = n == 0 ? FIRST_CHUNK : Math.min(1 << CHUNK_SHIFT, chunks[n - 1].capacity() << 1);
+            while (chunkSize < recordSize + 8)
+                chunkSize <<= 1;
+            chunks = Arrays.copyOf(chunks, n + 1);
+            chunks[n] = ByteBuffer.allocateDirect(chunkSize);
+            top = n == 0 ? 8 : 0;//no zero reference, 0 is an empty slot
+        }
+        final int ref = (chunks.length - 1) << OFFSET_BITS | top >>> 3;
+        top += recordSize;
+        used += recordSize;
+        return ref;
+    }
+
+    private boolean needCompact() {
+        return garbage > FIRST_CHUNK && garbage > used >> 1;
+    }
+
+    /**
+     * Rewrites the live records to a fresh arena, dropping the ones of the removed/replaced mappings. The slot table stays as it is.
+     */
+    public void compact() {
+        checkWritable();
+        final ByteBuffer[] old = chunks;
+        final ByteBuffer[] pages = this.pages;
+        chunks = NONE;
+        top = 0;
+        used = 0;
+        garbage = 0;
+        for (int i = 0; i < capacity; i++){
+            final long s = slot(pages, i);
+            if (s == 0)
+                continue;
+            final ByteBuffer c = old[(int) s >>> OFFSET_BITS];
+            final int off = offset((int) s);
+            final int recordSize = recordSize(keyLength(c, off), valueLength(c, off));
+            final int ref = allocate(recordSize);
+            final ByteBuffer src = c.duplicate();
+            src.limit(off + recordSize).position(off);
+            final ByteBuffer dst = chunk(ref).duplicate();
+            dst.position(offset(ref));
+            dst.put(src);
+            setSlot(pages, i, slot((int) (s >>> 32), ref));
+        }
+    }
+
+    private void resize(int newCapacity) {
+        final ByteBuffer[] oldPages = pages;
+        final int oldCapacity = capacity;
+        final ByteBuffer[] pages = new ByteBuffer[Math.max(1, newCapacity >>> PAGE_SHIFT)];
+        for (int p = 0; p < pages.length; p++)
+            pages[p] = ByteBuffer.allocateDirect(Math.min(newCapacity, 1 << PAGE_SHIFT) << 3);
+
+        final int mask = newCapacity - 1;
+        for (int j = 0; j < oldCapacity; j++){
+            final long s = slot(oldPages, j);
+            if (s == 0)
+                continue;
+            int i = (int) (s >>> 32) & mask;//no keys read, the hash is in the slot
+            while (slot(pages, i) != 0)
+                i = (i + 1) & mask;
+            setSlot(pages, i, s);
+        }
+        this.pages = pages;
+        this.capacity = newCapacity;
+    }
+
+    /**
+     * Grows the slot table (if needed) to hold expectedSize elements without further resizing
+     */
+    public void ensureCapacity(int expectedSize) {
+        checkWritable();
+        final int capacity = capacityFor(expectedSize);
+        if (capacity > this.capacity)
+            resize(capacity);
+    }
+
+    /**
+     * Removes all mappings and drops the direct buffers
+     */
+    public void clear() {
+        checkWritable();
+        pages = NONE;
+        chunks = NONE;
+        capacity = 0;
+        size = 0;
+        top = 0;
+        used = 0;
+        garbage = 0;
+    }
+
+    /**
+     * @return the direct memory reserved by the map, in bytes
+     */
+    public long offHeapSize() {
+        long n = 0;
+        for (ByteBuffer b : pages)
+            n += b.capacity();
+        for (ByteBuffer b : chunks)
+            n += b.capacity();
+        return n;
+    }
+
+    /**
+     * @return true if the map is a mapped snapshot, i.e. it cannot be modified
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Writes the slot table and the arena, as they are (the garbage included, see {@link #compact()}), to the file.
+     * Layout: header (magic, key/value width, capacity, size, chunk count, garbage, the length of each chunk), 
+     * the slot table, then the chunks; all big endian and 8 byte aligned.
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        final ByteBuffer[] chunks = this.chunks;
+        final ByteBuffer header = ByteBuffer.allocate(headerSize(chunks.length));
+        header.putLong(MAGIC).putInt(keyWidth).putInt(valueWidth).putInt(capacity).putInt(size).putInt(chunks.length).putInt(0).putLong(garbage);
+        for (int i = 0; i < chunks.length; i++)
+            header.putInt(i == chunks.length - 1 ? top : chunks[i].capacity());
+        header.clear();
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            writeFully(ch, header);
+            for (ByteBuffer page : pages)
+                writeFully(ch, page.duplicate());
+            for (int i = 0; i < chunks.length; i++){
+                final ByteBuffer b = chunks[i].duplicate();
+                b.limit(i == chunks.length - 1 ? top : b.capacity());
+                writeFully(ch, b);
+            }
+        }
+    }
+
+    /**
+     * Maps a snapshot written by {@link #writeSnapshot(Path)}; the map is read-only and stays valid after the file is closed.
+     * @throws IllegalArgumentException if the widths of the codecs do not match the snapshot
+     * @throws IOException if the file is not a snapshot, or cannot be read
+     */
+    public static <K, V> OffHeapCompactMap<K, V> openSnapshot(Path file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        final OffHeapCompactMap<K, V> map = new OffHeapCompactMap<>(keyCodec, valueCodec);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+            ByteBuffer header = readFully(ch, 0, headerSize(0));
+            if (header.getLong(0) != MAGIC)
+                throw new IOException("Not a snapshot: "+file);
+            if (header.getInt(8) != map.keyWidth || header.getInt(12) != map.valueWidth)
+                throw new IllegalArgumentException("Codec widths do not match the snapshot");
+            final int capacity = header.getInt(16);
+            final int chunkCount = header.getInt(24);
+            if (capacity < 0 || Integer.bitCount(capacity) > 1 || capacity > MAXIMUM_CAPACITY || chunkCount < 0 || chunkCount > MAX_CHUNKS)
+                throw new IOException("Corrupted snapshot: "+file);
+            map.size = header.getInt(20);
+            map.garbage = header.getLong(32);
+            header = readFully(ch, 0, headerSize(chunkCount));
+
+            long position = header.capacity();
+            final ByteBuffer[] pages = new ByteBuffer[capacity == 0 ? 0 : Math.max(1, capacity >>> PAGE_SHIFT)];
+            for (int p = 0; p < pages.length; p++){
+                final int length = Math.min(capacity, 1 << PAGE_SHIFT) << 3;
+                pages[p] = ch.map(FileChannel.MapMode.READ_ONLY, position, length);
+                position += length;
+            }
+            final ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++){
+                final int length = header.getInt(40 + (i << 2));
+                chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, position, length);
+                position += length;
+                map.used += length;
+            }
+            map.pages = pages;
+            map.chunks = chunks;
+            map.capacity = capacity;
+            map.top = chunkCount == 0 ? 0 : chunks[chunkCount - 1].capacity();
+            map.readOnly = true;
+        }
+        return map;
+    }
+
+    private static int headerSize(int chunkCount) {
+        return (40 + (chunkCount << 2) + 7) & ~7;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            ch.write(b);
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long position, int length) throws IOException {
+        final ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()){
+            if (ch.read(b, position + b.position()) < 0)
+                throw new java.io.EOFException();
+        }
+        return b;
+    }
+
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        final ByteBuffer[] pages = this.pages;
+        for (int i = 0; i < capacity; i++){
+            final long s = slot(pages, i);
+            if (s == 0)
+                continue;
+            final ByteBuffer c = chunk((int) s);
+            final int off = offset((int) s);
+            final int keyLength = keyLength(c, off);
+            action.accept(keyCodec.read(c, off + header, keyLength), readValue(c, off, keyLength));
+        }
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder().append('{');
+        forEach((k, v) -> sb.append(sb.length() > 1 ? ", " : "").append(k).append('=').append(v));
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,502 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+* Flavor of {@link CompactHashMap} for very large maps, with no giant table and no resize of all the entries at once - extendible hashing.
+* The top bits of the smeared hash select a page out of a directory, each page is an interleaved key/value table of its own (the low bits select the slot,
+* linear probe, the same fill factor curve and backward shift deletion). A page grows on its own up to 16K slots
+* (128KB with compressed pointers - far from a humongous G1 allocation), then it is split in two pages on the next hash bit.
+* The directory doubles when a page of the full depth splits; it holds a reference per page at most 2^17, even at the maximum capacity.
+* So the worst insert rehashes a single page and the longest array is the directory.
+* Keys sharing all the 17 top bits (e.g. equal hash codes) do not fit the scheme; a page of the full depth keeps doubling past 16K slots, 
+* just like a CompactHashMap table, and a split that moves no key keeps the table as is.
+*
+* The price is an extra (well cached) indirection per lookup and fuller pages after a split.
+* No null keys and values; no hashing strategies, Robin Hood or cached hashes.
+*
+* @author Stanimir Simeonoff
+*/
+public class PagedCompactHashMap<K, V> extends AbstractMap<K, V> implements Cloneable, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final Object[] EMPTY = {};
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+    private static final int PAGE_LENGTH = 1 << 15;//interleaved, so 16K slots per page
+    private static final int MAX_DEPTH = 32 - Integer.numberOfTrailingZeros(PAGE_LENGTH);//the page bits never overlap the slot ones
+    private static final int PAGE_CAPACITY = pageCapacity();
+
+    transient int size;
+    transient Page[] directory;//2^depth references; a page of local depth d is referenced by 2^(depth-d) consecutive ones
+    transient int depth;
+
+    static final class Page{
+        Object[] table = EMPTY;//key at even pos, value at odd, no nulls
+        int size;
+        final int depth;//the number of the top hash bits shared by the keys of the page
+
+        Page(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    public PagedCompactHashMap() {
+        this(0);
+    }
+
+    /**
+     * Creates a map that holds expectedSize (well distributed) elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public PagedCompactHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        int depth = 0;
+        while (depth < MAX_DEPTH && (long) PAGE_CAPACITY << depth < expectedSize)
+            depth++;
+        final int perPage = (int) ((expectedSize + (1L << depth) - 1) >> depth);
+        final Page[] directory = new Page[1 << depth];
+        for (int j = 0; j < directory.length; j++){
+            directory[j] = new Page(depth);
+            if (perPage > 0)
+                directory[j].table = new Object[lengthFor(perPage)];
+        }
+        this.directory = directory;
+        this.depth = depth;
+    }
+
+    public PagedCompactHashMap(Map<? extends K, ? extends V> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    private static int pageCapacity() {
+        int capacity = 1;
+        while (!CompactHashMap.needGrow(PAGE_LENGTH, capacity + 1))
+            capacity++;
+        return capacity;
+    }
+
+    private static int lengthFor(int size) {
+        int len = 2;
+        while (len < PAGE_LENGTH && CompactHashMap.needGrow(len, size))
+            len <<= 1;
+        return len;
+    }
+
+    private static int spread(Object key) {
+        return CompactHashMap.smear(key.hashCode());
+    }
+
+    private static int slot(int hash, int len) {
+        return hash & (len - 1) & ~1;
+    }
+
+    private static int nextKeyIndex(int i, int len) {
+        return (i + 2) & (len - 1);
+    }
+
+    private Page page(int hash) {
+        final Page[] directory = this.directory;
+        return directory[(hash >>> -depth) & (directory.length - 1)];//the top depth bits, none for a zero depth
+    }
+
+    /**
+     * @return the index of the key, if present; otherwise the complement (~) of the free slot the key should go to (the start one, if the table is full)
+     */
+    private static int indexOf(Object k, int hash, Object[] tab) {
+        final int len = tab.length;
+        if (len == 0)
+            return ~0;
+        for (int i = slot(hash, len), start = i;;){
+            final Object item = tab[i];
+            if (item == null)
+                return ~i;
+            if (k == item || k.equals(item))
+                return i;
+            if (start == (i = nextKeyIndex(i, len)))
+                return ~i;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        final Object k = Objects.requireNonNull(key);
+        final int h = spread(k);
+        final Object[] tab = page(h).table;
+        final int len = tab.length;
+        if (len == 0)
+            return null;
+        for (int i = slot(h, len), start = i;;){
+            final Object item = tab[i];
+            if (k == item || k.equals(item))
+                return (V) tab[i + 1];
+            if (item == null || start == (i = nextKeyIndex(i, len)))
+                return null;
+        }
+    }
+
+    @Override public boolean containsKey(Object key) {return get(key) != null;}
+    @Override public int size() {return size;}
+    @Override public boolean isEmpty() {return size == 0;}
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (value == null)
+            return false;
+        Page last = null;
+        for (Page p : directory){
+            if (p == last)
+                continue;
+            last = p;
+            final Object[] tab = p.table;
+            for (int i = 1; i < tab.length; i += 2){
+                if (value.equals(tab[i]))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        final int h = spread(k);
+        for (;;){
+            final Page p = page(h);
+            final Object[] tab = p.table;
+            int i = indexOf(k, h, tab);
+            if (i >= 0){
+                final V old = (V) tab[i + 1];
+                if (old != value)
+                    tab[i + 1] = value;
+                return old;
+            }
+            if ((tab.length == 0 || CompactHashMap.needGrow(tab.length, p.size + 1)) && grow(p))
+                continue;//grown or split, try again
+            i = ~i;
+            tab[i] = k;
+            tab[i + 1] = value;
+            p.size++;
+            size++;
+            return null;
+        }
+    }
+
+    /**
+     * Doubles the table of the page or splits the page, if at full length; the pages of the full depth keep doubling
+     * @return false if the page cannot grow anymore, its table has room for all the mappings still
+     */
+    private boolean grow(Page p) {
+        if (size >= MAXIMUM_CAPACITY - 1)
+            throw new IllegalStateException("Capacity exhausted.");
+        final int len = p.table.length;
+        if (len < PAGE_LENGTH || p.depth == MAX_DEPTH && len < MAXIMUM_CAPACITY << 1){
+            final Object[] old = p.table;
+            final Object[] tab = new Object[Math.max(2, len << 1)];
+            for (int j = 0; j < old.length; j += 2){
+                if (old[j] != null)
+                    place(old[j], spread(old[j]), old[j + 1], tab);
+            }
+            p.table = tab;
+            return true;
+        }
+        if (p.depth == MAX_DEPTH)//MAXIMUM_CAPACITY slots, fill the page up
+            return false;
+        split(p);
+        return true;
+    }
+
+    /**
+     * Splits the page on the next hash bit in two pages of the same length, doubling the directory first if the page has the full depth.
+     * If all the keys go to the same side, it takes the table as is - the slots depend on the low bits only.
+     */
+    private void split(Page p) {
+        if (p.depth == depth){
+            final Page[] old = directory;
+            final Page[] directory = new Page[old.length << 1];
+            for (int j = 0; j < directory.length; j++)
+                directory[j] = old[j >> 1];
+            this.directory = directory;
+            this.depth++;
+        }
+        final int len = p.table.length, bit = 31 - p.depth;
+        final Page low = new Page(p.depth + 1), high = new Page(p.depth + 1);
+        final Object[] tab = p.table;
+        int highs = 0;
+        for (int j = 0; j < len; j += 2){
+            if (tab[j] != null)
+                highs += spread(tab[j]) >>> bit & 1;
+        }
+        if (highs == 0 || highs == p.size){
+            final Page target = highs == 0 ? low : high;
+            target.table = tab;
+            target.size = p.size;
+        } else{
+            low.table = new Object[len];
+            high.table = new Object[len];
+            for (int j = 0; j < len; j += 2){
+                final Object k = tab[j];
+                if (k == null)
+                    continue;
+                final int h = spread(k);
+                final Page target = (h >>> bit & 1) == 0 ? low : high;
+                place(k, h, tab[j + 1], target.table);
+                target.size++;
+            }
+        }
+        final Page[] directory = this.directory;
+        final int shift = depth - p.depth - 1;
+        for (int j = 0; j < directory.length; j++){//the references of the page are consecutive, that's a short scan of a small array
+            if (directory[j] == p)
+                directory[j] = (j >>> shift & 1) == 0 ? low : high;
+        }
+    }
+
+    /**
+     * Trusted insert of a key known to be absent, in a table known to have room for it
+     */
+    private static void place(Object key, int hash, Object value, Object[] tab) {
+        final int len = tab.length;
+        int i = slot(hash, len);
+        while (tab[i] != null)
+            i = nextKeyIndex(i, len);
+        tab[i] = key;
+        tab[i + 1] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        final Object k = Objects.requireNonNull(key);
+        final int h = spread(k);
+        final Page p = page(h);
+        final Object[] tab = p.table;
+        final int i = indexOf(k, h, tab);
+        if (i < 0)
+            return null;
+        final V old = (V) tab[i + 1];
+        tab[i] = null;
+        tab[i + 1] = null;
+        p.size--;
+        size--;
+        closeDeletion(i, tab);
+        return old;
+    }
+
+    /**
+     * Knuth Section 6.4 Algorithm R, see CompactHashMap.closeDeletion
+     */
+    private static void closeDeletion(int del, Object[] tab) {
+        final int len = tab.length;
+        Object item;
+        for (int i = nextKeyIndex(del, len); (item = tab[i]) != null; i = nextKeyIndex(i, len)){//del is empty, so the loop ends
+            final int h = slot(spread(item), len);
+            if ((i < h && (h <= del || del <= i)) || (h <= del && del <= i)) {
+                tab[del] = item;
+                tab[del + 1] = tab[i + 1];
+                tab[i] = null;
+                tab[i + 1] = null;
+                del = i;
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        directory = new Page[]{new Page(0)};
+        depth = 0;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        Page last = null;
+        for (Page p : directory){
+            if (p == last)
+                continue;
+            last = p;
+            final Object[] tab = p.table;
+            for (int i = 0; i < tab.length; i += 2){
+                if (tab[i] != null)
+                    action.accept((K) tab[i], (V) tab[i + 1]);
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIter();
+            }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getKey() == null ? null : get(e.getKey());
+                return v != null && v.equals(e.getValue());
+            }
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return e.getKey() != null && PagedCompactHashMap.this.remove(e.getKey(), e.getValue());
+            }
+            @Override public void clear() {PagedCompactHashMap.this.clear();}
+            @Override public int size() {return size;}
+        };
+    }
+
+    /**
+     * Walks the pages one by one; the first remove() in a page copies its table (no longer than a page), so the backward shifts do not disturb the walk.
+     */
+    private class EntryIter implements Iterator<Map.Entry<K, V>>{
+        final Page[] directory = PagedCompactHashMap.this.directory;
+        int page = -1;
+        Object[] tab = EMPTY;
+        boolean copied;
+        int next;//index in tab
+        int lastPage;
+        Object lastKey;
+
+        EntryIter() {
+            advance(0);
+        }
+
+        private void advance(int i) {
+            for (;;){
+                for (; i < tab.length; i += 2){
+                    if (tab[i] != null){
+                        next = i;
+                        return;
+                    }
+                }
+                final Page last = page < 0 ? null : directory[page];
+                do{
+                    if (++page == directory.length){
+                        next = -1;
+                        tab = EMPTY;
+                        return;
+                    }
+                } while (directory[page] == last);
+                tab = directory[page].table;
+                copied = false;
+                i = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            final int i = next;
+            if (i < 0)
+                throw new NoSuchElementException();
+            if (directory != PagedCompactHashMap.this.directory || (!copied && tab != directory[page].table))
+                throw new ConcurrentModificationException();
+            final Object[] tab = this.tab;
+            lastPage = page;
+            advance(i + 2);
+            lastKey = tab[i];
+            return new WriteThroughEntry((K) tab[i], (V) tab[i + 1]);
+        }
+
+        @Override
+        public void remove() {
+            final Object k = lastKey;
+            if (k == null)
+                throw new IllegalStateException("not started/already removed");
+            lastKey = null;
+            if (!copied && lastPage == page){//still in the page of the key
+                tab = tab.clone();
+                copied = true;
+            }
+            PagedCompactHashMap.this.remove(k);
+        }
+    }
+
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V>{
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            put(getKey(), Objects.requireNonNull(value));
+            return super.setValue(value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public PagedCompactHashMap<K, V> clone() {
+        try{
+            final PagedCompactHashMap<K, V> m = (PagedCompactHashMap<K, V>) super.clone();
+            final Page[] directory = m.directory.clone();
+            Page last = null, copy = null;
+            for (int j = 0; j < directory.length; j++){
+                if (directory[j] != last){
+                    last = directory[j];
+                    copy = new Page(last.depth);
+                    copy.table = last.table.length == 0 ? EMPTY : last.table.clone();
+                    copy.size = last.size;
+                }
+                directory[j] = copy;
+            }
+            m.directory = directory;
+            return m;
+        }catch (CloneNotSupportedException _ex) {
+            throw new AssertionError();
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        s.writeInt(size);
+        Page last = null;
+        for (Page p : directory){
+            if (p == last)
+                continue;
+            last = p;
+            final Object[] tab = p.table;
+            for (int i=0; i<tab.length; i+=2){
+                if (tab[i] != null) {
+                    s.writeObject(tab[i]);
+                    s.writeObject(tab[i+1]);
+                }
+            }
+        }
+    }
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        clear();
+        final int size = s.readInt();
+        if (size < 0 || size >= MAXIMUM_CAPACITY)
+            throw new java.io.InvalidObjectException("Illegal size: "+size);
+        for (int i=0; i<size; i++){
+            put((K) s.readObject(), (V) s.readObject());
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+* Flavor of {@link CompactHashMap} with O(1) {@link #snapshot()}: the same interleaved key/value table, linear probe and backward shift deletion,
+* yet the table is split into fixed size pages, shared among the snapshots and copied on write. Each page carries the owner stamp of the map that may
+* write it; taking a snapshot changes the stamp of both maps, so the first write to a page afterwards copies it (and the page directory once).
+* The writers pay for the pages they touch only, a resize starts anew with pages of its own.
+*
+* The snapshot is a map of its own (it can be written, too) and it never observes the later writes of the origin. The pages of a snapshot are never
+* written again, so it can be read by many threads, once published safely; the map itself is not thread safe.
+* No null keys and values; no hashing strategies, Robin Hood or cached hashes.
+*
+* @author Stanimir Simeonoff
+*/
+public class SnapshotCompactHashMap<K, V> extends AbstractMap<K, V> implements Cloneable, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final Object[][] NO_PAGES = {};
+    private static final Object[] NO_OWNERS = {};
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+    private static final int PAGE_LENGTH = 1 << 12;//2048 entries, 16KB with compressed pointers
+
+    transient int size;
+    transient Object[][] pages = NO_PAGES;//each page a part of the interleaved table: key at even pos, value at odd
+    transient int length;//of the whole table, zero - no pages
+    transient int pageShift;//log2 of the page length
+    private transient Object[] owners = NO_OWNERS;//the stamp of the map that may write the page
+    private transient Object stamp = new Object();
+    private transient boolean sharedPages;//the pages/owners arrays are shared with a snapshot
+
+    public SnapshotCompactHashMap() {
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public SnapshotCompactHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (expectedSize > 0)
+            rehash(lengthFor(expectedSize));
+    }
+
+    public SnapshotCompactHashMap(Map<? extends K, ? extends V> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    private static int hash(Object key, int len) {
+        return CompactHashMap.smear(key.hashCode()) & (len - 1) & ~1;
+    }
+
+    private static int nextKeyIndex(int i, int len) {
+        return (i + 2) & (len - 1);
+    }
+
+    private static int lengthFor(int size) {
+        int len = 2;
+        while (len < MAXIMUM_CAPACITY << 1 && (len >> 1 <= size || CompactHashMap.needGrow(len, size)))//a free slot at least, no loop the loop
+            len <<= 1;
+        return len;
+    }
+
+    private Object keyAt(int i) {
+        return pages[i >>> pageShift][i & ((1 << pageShift) - 1)];
+    }
+
+    private Object valueAt(int i) {
+        return pages[i >>> pageShift][(i & ((1 << pageShift) - 1)) + 1];
+    }
+
+    /**
+     * @return the page of the index i, copied first if not owned by this map
+     */
+    private Object[] writablePage(int i) {
+        if (sharedPages){
+            pages = pages.clone();
+            owners = owners.clone();
+            sharedPages = false;
+        }
+        final int p = i >>> pageShift;
+        Object[] page = pages[p];
+        if (owners[p] != stamp){
+            pages[p] = page = page.clone();
+            owners[p] = stamp;
+        }
+        return page;
+    }
+
+    private void set(int i, Object key, Object value) {
+        final Object[] page = writablePage(i);
+        final int j = i & (page.length - 1);
+        page[j] = key;
+        page[j + 1] = value;
+    }
+
+    /**
+     * @return the index of the key, if present; otherwise the complement (~) of the free slot the key should go to
+     */
+    private int indexOf(Object k) {
+        final Object[][] pages = this.pages;
+        final int len = length, shift = pageShift, mask = (1 << shift) - 1;
+        for (int i = hash(k, len);; i = nextKeyIndex(i, len)){
+            final Object item = pages[i >>> shift][i & mask];
+            if (item == null)
+                return ~i;
+            if (k == item || k.equals(item))
+                return i;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        final Object k = Objects.requireNonNull(key);
+        final Object[][] pages = this.pages;
+        if (pages.length == 0)
+            return null;
+        final int len = length, shift = pageShift, mask = (1 << shift) - 1;
+        for (int i = hash(k, len);; i = nextKeyIndex(i, len)){//there is always a free slot
+            final Object[] page = pages[i >>> shift];
+            final Object item = page[i & mask];
+            if (k == item || k.equals(item))
+                return (V) page[(i & mask) + 1];
+            if (item == null)
+                return null;
+        }
+    }
+
+    @Override public boolean containsKey(Object key) {return get(key) != null;}
+    @Override public int size() {return size;}
+    @Override public boolean isEmpty() {return size == 0;}
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (value == null)
+            return false;
+        for (Object[] page : pages){
+            for (int i = 1; i < page.length; i += 2){
+                if (value.equals(page[i]))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        if (length == 0)
+            rehash(lengthFor(1));
+        int i = indexOf(k);
+        if (i >= 0){
+            final V old = (V) valueAt(i);
+            if (old != value)
+                set(i, k, value);
+            return old;
+        }
+        if (CompactHashMap.needGrow(length, size + 1) || length >> 1 <= size + 1){
+            if (length == MAXIMUM_CAPACITY << 1){
+                if (length >> 1 <= size + 1)
+                    throw new IllegalStateException("Capacity exhausted.");
+            } else {
+                rehash(length << 1);
+                i = indexOf(k);
+            }
+        }
+        set(~i, k, value);
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        final Object k = Objects.requireNonNull(key);
+        if (length == 0)
+            return null;
+        final int i = indexOf(k);
+        if (i < 0)
+            return null;
+        final V old = (V) valueAt(i);
+        set(i, null, null);
+        size--;
+        closeDeletion(i);
+        return old;
+    }
+
+    /**
+     * Knuth Section 6.4 Algorithm R, see CompactHashMap.closeDeletion; only the pages of the moved entries are copied
+     */
+    private void closeDeletion(int del) {
+        final int len = length;
+        Object item;
+        for (int i = nextKeyIndex(del, len); (item = keyAt(i)) != null; i = nextKeyIndex(i, len)){//del is empty, so the loop ends
+            final int h = hash(item, len);
+            if ((i < h && (h <= del || del <= i)) || (h <= del && del <= i)) {
+                set(del, item, valueAt(i));
+                set(i, null, null);
+                del = i;
+            }
+        }
+    }
+
+    /**
+     * Fresh pages owned by this map, the old (possibly shared) ones are not modified
+     */
+    private void rehash(int newLength) {
+        final Object[][] old = pages;
+        final int pageLength = Math.min(newLength, PAGE_LENGTH);
+        final int shift = Integer.numberOfTrailingZeros(pageLength), mask = pageLength - 1;
+        final Object[][] pages = new Object[newLength / pageLength][];
+        final Object[] owners = new Object[pages.length];
+        final Object stamp = this.stamp;
+        for (int p = 0; p < pages.length; p++){
+            pages[p] = new Object[pageLength];
+            owners[p] = stamp;
+        }
+        for (Object[] page : old){
+            for (int j = 0; j < page.length; j += 2){
+                final Object key = page[j];
+                if (key == null)
+                    continue;
+                int i = hash(key, newLength);
+                while (pages[i >>> shift][i & mask] != null)//no equals, the keys are distinct
+                    i = nextKeyIndex(i, newLength);
+                pages[i >>> shift][i & mask] = key;
+                pages[i >>> shift][(i & mask) + 1] = page[j + 1];
+            }
+        }
+        this.pages = pages;
+        this.owners = owners;
+        this.length = newLength;
+        this.pageShift = shift;
+        this.sharedPages = false;
+    }
+
+    /**
+     * Grows the table (if needed) to hold expectedSize elements without further resizing
+     */
+    public void ensureCapacity(int expectedSize) {
+        final int len = lengthFor(expectedSize);
+        if (len > length)
+            rehash(len);
+    }
+
+    /**
+     * Stops writing to the current pages: they belong to no map afterwards, both the snapshots and this map copy them on write.
+     * @return the current pages, never to be modified
+     */
+    private Object[][] share() {
+        stamp = new Object();
+        sharedPages = true;
+        return pages;
+    }
+
+    /**
+     * O(1) point in time copy: the pages are shared and copied on the first write to them by either map.
+     * The snapshot is safe to read concurrently with the writes to this map (if published safely).
+     * @return an independent map of the current mappings
+     */
+    public SnapshotCompactHashMap<K, V> snapshot() {
+        final SnapshotCompactHashMap<K, V> m = new SnapshotCompactHashMap<>();
+        m.pages = share();
+        m.owners = owners;
+        m.sharedPages = true;
+        m.length = length;
+        m.pageShift = pageShift;
+        m.size = size;
+        return m;
+    }
+
+    @Override
+    public void clear() {
+        pages = NO_PAGES;
+        owners = NO_OWNERS;
+        sharedPages = false;
+        length = 0;
+        pageShift = 0;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        for (Object[] page : pages){
+            for (int i = 0; i < page.length; i += 2){
+                if (page[i] != null)
+                    action.accept((K) page[i], (V) page[i + 1]);
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIter();
+            }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getKey() == null ? null : get(e.getKey());
+                return v != null && v.equals(e.getValue());
+            }
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return e.getKey() != null && SnapshotCompactHashMap.this.remove(e.getKey(), e.getValue());
+            }
+            @Override public void clear() {SnapshotCompactHashMap.this.clear();}
+            @Override public int size() {return size;}
+        };
+    }
+
+    /**
+     * Walks the pages of the map; the first remove() shares them (as a snapshot does), so the backward shifts do not disturb the walk.
+     */
+    private class EntryIter implements Iterator<Map.Entry<K, V>>{
+        final int length = SnapshotCompactHashMap.this.length, shift = pageShift, mask = (1 << shift) - 1;
+        Object[][] shared;//the pages as of the first remove(), null - the live ones
+        int next = advance(0);
+        Object lastKey;
+
+        private Object[][] pages() {
+            return shared != null ? shared : pages;
+        }
+
+        private int advance(int i) {
+            final Object[][] pages = pages();
+            for (; i < length; i += 2){
+                if (pages[i >>> shift][i & mask] != null)
+                    break;
+            }
+            return i;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            final int i = next;
+            if (i >= length)
+                throw new NoSuchElementException();
+            if (length != SnapshotCompactHashMap.this.length && shared == null)
+                throw new ConcurrentModificationException();
+            next = advance(i + 2);
+            final Object[] page = pages()[i >>> shift];
+            lastKey = page[i & mask];
+            return new WriteThroughEntry((K) lastKey, (V) page[(i & mask) + 1]);
+        }
+
+        @Override
+        public void remove() {
+            final Object k = lastKey;
+            if (k == null)
+                throw new IllegalStateException("not started/already removed");
+            lastKey = null;
+            if (shared == null){
+                if (length != SnapshotCompactHashMap.this.length)
+                    throw new ConcurrentModificationException();
+                shared = share();
+            }
+            SnapshotCompactHashMap.this.remove(k);
+        }
+    }
+
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V>{
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            put(getKey(), Objects.requireNonNull(value));
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * @return {@link #snapshot()}
+     */
+    @Override
+    public SnapshotCompactHashMap<K, V> clone() {
+        return snapshot();
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        s.writeInt(size);
+        for (Object[] page : pages){
+            for (int i=0; i<page.length; i+=2){
+                if (page[i] != null) {
+                    s.writeObject(page[i]);
+                    s.writeObject(page[i+1]);
+                }
+            }
+        }
+    }
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        clear();
+        stamp = new Object();
+        final int size = s.readInt();
+        if (size < 0 || size >= MAXIMUM_CAPACITY)
+            throw new java.io.InvalidObjectException("Illegal size: "+size);
+        ensureCapacity(size);
+        for (int i=0; i<size; i++){
+            put((K) s.readObject(), (V) s.readObject());
+        }
+    }
+}
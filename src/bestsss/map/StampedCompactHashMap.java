@@ -0,0 +1,353 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+* Thread safe wrapper of a {@link CompactHashMap} for read mostly sharing, a cheaper alternative of Collections.synchronizedMap.
+* The lookups are optimistic reads of a {@link StampedLock}: the probe runs with no lock at all, then the stamp is validated; a lookup that overlaps
+* a write (incl. resize and closing a deletion) is retried, then falls back to the read lock. Unlike a chained map, a probe never follows pointers,
+* so a torn read ends at the end of the cluster (or the table) and at worst throws - such an exception is discarded and the read retried.
+* The writes take the exclusive lock.
+*
+* All ConcurrentMap methods are atomic, the remapping functions are called under the write lock, so they should be short and must not access the map.
+* The iterators are weakly consistent, they walk a copy of the map taken under the read lock - iterating is O(n) extra, forEach is not.
+*
+* @author Stanimir Simeonoff
+*/
+public class StampedCompactHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final int OPTIMISTIC_ATTEMPTS = 2;
+
+    private final CompactHashMap<K, V> map;
+    private final StampedLock lock = new StampedLock();//serializable, always read unlocked
+
+    public StampedCompactHashMap() {
+        this(new CompactHashMap<K, V>());
+    }
+
+    /**
+     * Wraps the map, the map should not be accessed directly afterwards.
+     * @param map the backing map, configured as needed (growth policy, hashing strategy, etc.)
+     */
+    public StampedCompactHashMap(CompactHashMap<K, V> map) {
+        this.map = Objects.requireNonNull(map);
+    }
+
+    @Override
+    public V get(Object key) {
+        Objects.requireNonNull(key);
+        for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++){
+            final long stamp = lock.tryOptimisticRead();
+            if (stamp == 0L)//write locked
+                break;
+            try{
+                final V v = map.get(key);
+                if (lock.validate(stamp))
+                    return v;
+            }catch (RuntimeException _ex){//inconsistent read, e.g. the table and the cached hashes of a resize; a real failure is rethrown under the lock
+            }
+        }
+        final long stamp = lock.readLock();
+        try{
+            return map.get(key);
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override public boolean containsKey(Object key) {return get(key) != null;}
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        final V v = get(key);
+        return v == null ? defaultValue : v;
+    }
+
+    @Override
+    public int size() {
+        final long stamp = lock.tryOptimisticRead();
+        final int size = map.size();
+        if (lock.validate(stamp))
+            return size;
+        final long s = lock.readLock();
+        try{
+            return map.size();
+        }finally{
+            lock.unlockRead(s);
+        }
+    }
+
+    @Override public boolean isEmpty() {return size() == 0;}
+
+    @Override
+    public boolean containsValue(Object value) {
+        final long stamp = lock.readLock();
+        try{
+            return map.containsValue(value);
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        final long stamp = lock.writeLock();
+        try{
+            return map.put(key, value);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        final long stamp = lock.writeLock();
+        try{
+            map.putAll(m);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(value);
+        final V v = get(key);//no write lock for present keys
+        if (v != null)
+            return v;
+        final long stamp = lock.writeLock();
+        try{
+            return map.putIfAbsent(key, value);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        final long stamp = lock.writeLock();
+        try{
+            return map.remove(key);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        final long stamp = lock.writeLock();
+        try{
+            return map.remove(key, value);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(newValue);
+        final long stamp = lock.writeLock();
+        try{
+            return map.replace(key, oldValue, newValue);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        final long stamp = lock.writeLock();
+        try{
+            return map.replace(key, value);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        final V v = get(key);
+        if (v != null)
+            return v;
+        final long stamp = lock.writeLock();
+        try{
+            return map.computeIfAbsent(key, mappingFunction);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        final long stamp = lock.writeLock();
+        try{
+            return map.computeIfPresent(key, remappingFunction);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        final long stamp = lock.writeLock();
+        try{
+            return map.compute(key, remappingFunction);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        final long stamp = lock.writeLock();
+        try{
+            return map.merge(key, value, remappingFunction);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        final long stamp = lock.writeLock();
+        try{
+            map.replaceAll(function);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        final long stamp = lock.writeLock();
+        try{
+            map.clear();
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Performs the action under the read lock, the action must not update the map
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        final long stamp = lock.readLock();
+        try{
+            map.forEach(action);
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return a copy of the backing map, taken under the read lock
+     */
+    public CompactHashMap<K, V> copy() {
+        final long stamp = lock.readLock();
+        try{
+            return map.clone();
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIter(copy().entrySet().iterator());
+            }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getKey() == null ? null : get(e.getKey());
+                return v != null && v.equals(e.getValue());
+            }
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return e.getKey() != null && StampedCompactHashMap.this.remove(e.getKey(), e.getValue());
+            }
+            @Override public void clear() {StampedCompactHashMap.this.clear();}
+            @Override public int size() {return StampedCompactHashMap.this.size();}
+            @Override public boolean isEmpty() {return StampedCompactHashMap.this.isEmpty();}
+        };
+    }
+
+    private class EntryIter implements Iterator<Map.Entry<K, V>>{
+        final Iterator<Map.Entry<K, V>> copy;
+        K lastKey;
+
+        EntryIter(Iterator<Map.Entry<K, V>> copy) {
+            this.copy = copy;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return copy.hasNext();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            final Map.Entry<K, V> e = copy.next();
+            lastKey = e.getKey();
+            return new WriteThroughEntry(lastKey, e.getValue());
+        }
+
+        @Override
+        public void remove() {
+            final Object k = lastKey;
+            if (k == null)
+                throw new IllegalStateException("not started/already removed");
+            lastKey = null;
+            StampedCompactHashMap.this.remove(k);
+        }
+    }
+
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V>{
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            put(getKey(), Objects.requireNonNull(value));
+            return super.setValue(value);
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        final long stamp = lock.readLock();
+        try{
+            s.defaultWriteObject();
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        if (map == null)
+            throw new java.io.InvalidObjectException("No backing map");
+    }
+}
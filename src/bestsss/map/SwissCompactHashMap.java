@@ -0,0 +1,444 @@
+package bestsss.map;
+
+/*Written by S. Simeonoff and released to the public domain, as explained at http://creativecommons.org/publicdomain/zero/1.0/
+ * 2018
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+* Swiss table flavor of {@link CompactHashMap}: the same interleaved key/value table, linear probe and backward shift deletion,
+* plus a control byte per slot - 0 for an empty slot, or 0x80 | the top 7 bits of the smeared hash.
+* The control bytes are packed 8 per long and a probe tests a whole group at once (SWAR), so equals is called only on fragment matches,
+* i.e. about 1/128 of the colliding neighbours. The scan for an empty slot, and the iteration, skip 8 slots per step as well.
+*
+* The fill factor is 87.5% (7/8), the fragments keep the longer clusters cheap.
+* Extra memory consumption is a single byte per slot (~1.15 bytes per entry). No null keys and values, no fast fail iterators.
+*
+* @author Stanimir Simeonoff
+*/
+public class SwissCompactHashMap<K, V> extends AbstractMap<K, V> implements Cloneable, java.io.Serializable{
+    private static final long serialVersionUID = 1L;
+
+    private static final Object[] EMPTY = {};
+    private static final long[] NO_CONTROL = {};
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+    private static final int MIN_CAPACITY = 8;//a single group
+
+    private static final long LO = 0x0101010101010101L;
+    private static final long HI = 0x8080808080808080L;
+
+    transient int size;
+    transient Object[] table = EMPTY;//key at even pos, value at odd, no nulls
+    transient long[] control = NO_CONTROL;//control byte of slot i: (control[i >> 3] >>> ((i & 7) << 3)) & 0xFF
+
+    public SwissCompactHashMap() {
+    }
+
+    /**
+     * Creates a map that holds expectedSize elements without growing
+     * @param expectedSize the expected number of mappings
+     * @throws IllegalArgumentException if expectedSize is negative
+     */
+    public SwissCompactHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size: "+expectedSize);
+        if (expectedSize > 0)
+            allocate(capacityFor(expectedSize));
+    }
+
+    public SwissCompactHashMap(Map<? extends K, ? extends V> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    private static int spread(Object key) {
+        return CompactHashMap.smear(key.hashCode());
+    }
+
+    private static long fragment(int hash) {//7 high bits of the hash, the low ones select the slot
+        return 0x80 | hash >>> 25;
+    }
+
+    /**
+     * @return the high bit of each byte of w that equals the fragment (broadcast in pattern); false positives are possible above a true match
+     */
+    private static long match(long w, long pattern) {
+        final long x = w ^ pattern;
+        return (x - LO) & ~x & HI;
+    }
+
+    private static long empties(long w) {//full slots have the high bit set
+        return ~w & HI;
+    }
+
+    private static boolean needGrow(int capacity, int size) {
+        return capacity - (capacity >> 3) < size;//there is always an empty slot, so the probes terminate
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (needGrow(capacity, size)){
+            if (capacity == MAXIMUM_CAPACITY)
+                throw new IllegalStateException("Capacity exhausted.");
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        table = new Object[capacity << 1];
+        control = new long[capacity >> 3];
+    }
+
+    private static void setControl(long[] control, int slot, long c) {
+        final int shift = (slot & 7) << 3;
+        control[slot >> 3] = control[slot >> 3] & ~(0xFFL << shift) | c << shift;
+    }
+
+    private static boolean isFull(long[] control, int slot) {
+        return (control[slot >> 3] & 0x80L << ((slot & 7) << 3)) != 0;
+    }
+
+    /**
+     * @return the index of the key in the table, or ~index of the empty slot that terminates its probe sequence
+     */
+    private int indexOf(Object k, int hash, Object[] tab, long[] control) {
+        final int mask = (tab.length >> 1) - 1, gmask = control.length - 1;
+        final int slot = hash & mask;
+        final long pattern = fragment(hash) * LO;
+        long skip = -1L << ((slot & 7) << 3);//the bytes before the home slot in the first group
+        for (int g = slot >> 3; ; g = (g + 1) & gmask, skip = -1L){
+            final long w = control[g];
+            long empty = empties(w) & skip;
+            long m = match(w, pattern) & skip;
+            if (empty != 0)
+                m &= (empty & -empty) - 1;//the probe sequence ends on the first empty slot
+            for (; m != 0; m &= m - 1){
+                final int i = ((g << 3) + (Long.numberOfTrailingZeros(m) >>> 3)) << 1;
+                final Object item = tab[i];
+                if (k == item || k.equals(item))
+                    return i;
+            }
+            if (empty != 0)
+                return ~(((g << 3) + (Long.numberOfTrailingZeros(empty) >>> 3)) << 1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        final Object[] tab = table;
+        if (tab.length == 0)
+            return null;
+        final int i = indexOf(key, spread(key), tab, control);
+        return i < 0 ? null : (V) tab[i + 1];
+    }
+
+    @Override public boolean containsKey(Object key) {return get(key) != null;}
+    @Override public int size() {return size;}
+    @Override public boolean isEmpty() {return size == 0;}
+
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        final Object k = Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        if (table.length == 0)
+            allocate(MIN_CAPACITY);
+
+        final int hash = spread(k);
+        int i = indexOf(k, hash, table, control);
+        if (i >= 0){
+            final Object[] tab = table;
+            final V old = (V) tab[i + 1];
+            tab[i + 1] = value;
+            return old;
+        }
+        if (needGrow(table.length >> 1, size + 1)){
+            resize(capacityFor(size + 1));
+            i = indexOf(k, hash, table, control);
+        }
+        i = ~i;
+        final Object[] tab = table;
+        tab[i] = k;
+        tab[i + 1] = value;
+        setControl(control, i >> 1, fragment(hash));
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        final Object[] tab = table;
+        if (tab.length == 0)
+            return null;
+        final int i = indexOf(key, spread(key), tab, control);
+        if (i < 0)
+            return null;
+        final V old = (V) tab[i + 1];
+        removeAt(i, tab, null);
+        return old;
+    }
+
+    private void removeAt(int i, Object[] tab, Iter traverser) {
+        size--;
+        tab[i] = null;
+        tab[i + 1] = null;
+        setControl(control, i >> 1, 0);
+        closeDeletion(i >> 1, tab, control, traverser);
+    }
+
+    /**
+     * Backward shift (Knuth Section 6.4 Algorithm R) on slots; the control bytes move along with the entries.
+     * @param traverser if not null, gets notified of the entries moved from the front of the table to its tail (wrapped clusters)
+     */
+    private void closeDeletion(int del, Object[] tab, long[] control, Iter traverser) {
+        final int mask = (tab.length >> 1) - 1;
+        for (int i = (del + 1) & mask; isFull(control, i); i = (i + 1) & mask){
+            final Object item = tab[i << 1];
+            final int home = spread(item) & mask;
+            if ((i < home && (home <= del || del <= i)) || (home <= del && del <= i)) {
+                if (i < del && traverser != null)
+                    traverser.wrapped(item);
+                tab[del << 1] = item;
+                tab[(del << 1) + 1] = tab[(i << 1) + 1];
+                setControl(control, del, (control[i >> 3] >>> ((i & 7) << 3)) & 0xFF);
+                tab[i << 1] = null;
+                tab[(i << 1) + 1] = null;
+                setControl(control, i, 0);
+                del = i;
+            }
+        }
+    }
+
+    private void resize(int newCapacity) {
+        final Object[] oldTable = table;
+        final long[] oldControl = control;
+        allocate(newCapacity);
+        final Object[] tab = table;
+        final long[] control = this.control;
+        final int mask = newCapacity - 1, gmask = control.length - 1;
+        for (int j = 0; j < oldTable.length; j += 2){
+            final Object k = oldTable[j];
+            if (k == null)
+                continue;
+            final int hash = spread(k);//no equals, the keys are distinct; just find the 1st empty slot
+            final int slot = hash & mask;
+            long skip = -1L << ((slot & 7) << 3);
+            long empty;
+            int g = slot >> 3;
+            while ((empty = empties(control[g]) & skip) == 0){
+                g = (g + 1) & gmask;
+                skip = -1L;
+            }
+            final int i = (g << 3) + (Long.numberOfTrailingZeros(empty) >>> 3);
+            tab[i << 1] = k;
+            tab[(i << 1) + 1] = oldTable[j + 1];
+            setControl(control, i, fragment(hash));
+        }
+        Arrays.fill(oldControl, 0L);
+    }
+
+    /**
+     * @return the first full slot at or after the specified one, the capacity if none
+     */
+    private static int seek(long[] control, int slot) {
+        int g = slot >> 3;
+        if (g >= control.length)
+            return control.length << 3;
+        long w = control[g] & HI & (-1L << ((slot & 7) << 3));
+        while (w == 0){
+            if (++g == control.length)
+                return control.length << 3;
+            w = control[g] & HI;
+        }
+        return (g << 3) + (Long.numberOfTrailingZeros(w) >>> 3);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        final Object[] tab = table;
+        for (int i = 1; i < tab.length; i += 2){
+            final Object v = tab[i];
+            if (v != null && (v == value || v.equals(value)))
+                return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(java.util.function.BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        final Object[] tab = table;
+        final long[] control = this.control;
+        for (int slot = seek(control, 0), n = tab.length >> 1; slot < n; slot = seek(control, slot + 1)){
+            action.accept((K) tab[slot << 1], (V) tab[(slot << 1) + 1]);
+        }
+    }
+
+    @Override
+    public void clear() {
+        table = EMPTY;
+        control = NO_CONTROL;
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new Iter();
+            }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object v = e.getKey() == null ? null : get(e.getKey());
+                return v != null && v.equals(e.getValue());
+            }
+            @Override
+            public boolean remove(Object o) {
+                if (!contains(o))
+                    return false;
+                SwissCompactHashMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+                return true;
+            }
+            @Override public void clear() {SwissCompactHashMap.this.clear();}
+            @Override public int size() {return size;}
+        };
+    }
+
+    /**
+     * Slot walk over the control words, the removal is in place - see CompactHashMap.Traverser.
+     */
+    private class Iter implements Iterator<Map.Entry<K, V>>{
+        Object[] tab = table;
+        long[] control = SwissCompactHashMap.this.control;
+        int current = -1;
+        int next = seek(0);
+        Object[] wrapped;//keys moved from the front to the tail of the table
+        int wrappedCount;
+
+        private int seek(int slot){
+            slot = SwissCompactHashMap.seek(control, slot);
+            while (wrappedCount > 0 && slot < tab.length >> 1 && skip(tab[slot << 1]))
+                slot = SwissCompactHashMap.seek(control, slot + 1);
+            return slot;
+        }
+
+        private boolean skip(Object k){//kept for the entire walk, see CompactHashMap.Traverser
+            final Object[] w = wrapped;
+            for (int i=0; i<wrappedCount; i++){
+                if (w[i] == k)
+                    return true;
+            }
+            return false;
+        }
+
+        final void wrapped(Object k){
+            if (wrapped == null)
+                wrapped = new Object[4];
+            else if (wrappedCount == wrapped.length)
+                wrapped = Arrays.copyOf(wrapped, wrappedCount * 2);
+            wrapped[wrappedCount++] = k;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < tab.length >> 1;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            final int slot = next;
+            if (slot >= tab.length >> 1)
+                throw new NoSuchElementException();
+            next = seek(slot + 1);
+            current = slot;
+            return new TableEntry(tab, slot << 1);
+        }
+
+        @Override
+        public void remove() {
+            final int slot = current;
+            if (slot < 0)
+                throw new IllegalStateException("not started/already removed");
+            current = -1;
+            final Object[] tab = this.tab;
+            if (tab != table){//the map has been resized meanwhile
+                Object k = tab[slot << 1];
+                if (k != null)
+                    SwissCompactHashMap.this.remove(k);
+                return;
+            }
+            removeAt(slot << 1, tab, this);
+            next = seek(slot);//the removed slot may hold a shifted entry now
+        }
+    }
+
+    private class TableEntry extends AbstractMap.SimpleEntry<K, V>{
+        private static final long serialVersionUID = 1L;
+        private final transient Object[] tab;
+        private final transient int i;
+
+        @SuppressWarnings("unchecked")
+        TableEntry(Object[] tab, int i) {
+            super((K) tab[i], (V) tab[i + 1]);
+            this.tab = tab;
+            this.i = i;
+        }
+
+        @Override
+        public V setValue(V value) {
+            Objects.requireNonNull(value);
+            if (tab == table && tab[i] == getKey())
+                tab[i + 1] = value;
+            else
+                put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public SwissCompactHashMap<K,V> clone(){
+        try{
+            SwissCompactHashMap<K,V> m = (SwissCompactHashMap<K, V>) super.clone();
+            if (m.table != EMPTY){
+                m.table = m.table.clone();
+                m.control = m.control.clone();
+            }
+            return m;
+        }catch (CloneNotSupportedException _ex) {
+            throw new AssertionError();
+        }
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException{
+        s.defaultWriteObject();
+        s.writeInt(size);
+        Object[] tab = table;
+        for (int i=0; i<tab.length; i+=2){
+            if (tab[i]!=null) {
+                s.writeObject(tab[i]);
+                s.writeObject(tab[i+1]);
+            }
+        }
+    }
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        table = EMPTY;
+        control = NO_CONTROL;
+        int size  = s.readInt();
+        if (size <= 0){
+            return;
+        }
+        allocate(capacityFor(size));
+        for (int i=0; i<size; i++){
+            put((K)s.readObject(), (V)s.readObject());
+        }
+    }
+}
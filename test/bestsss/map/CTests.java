@@ -36,6 +36,65 @@ public class CTests {
         evenLower(new HashMap<>());
 
         emptyTest(new CompactHashMap<>());
+
+        assertEquals(
+            computeTest(new CompactHashMap<>(), 2017),
+            computeTest(new HashMap<>(), 2017)
+        );
+
+        assertEquals(
+            forEachTest(newMap(n, CompactHashMap::new)),
+            forEachTest(newMap(n, HashMap::new))
+        );
+
+        spliteratorTest(newMap(n, CompactHashMap::new));
+        bulkTest(newMap(n, CompactHashMap::new), 1);
+        bulkTest(newMap(n, CompactHashMap::new), Long.MAX_VALUE);
+        shrinkTest(false);
+        shrinkTest(true);
+        presizeTest(n);
+        for (GrowthPolicy policy : new GrowthPolicy[]{GrowthPolicy.Preset.LOOKUP, GrowthPolicy.Preset.COMPACT, GrowthPolicy.loadFactor(1f), GrowthPolicy.loadFactor(0.3f), (c, s) -> c < s}){
+            growthTest(policy, n);
+        }
+        strategyTest();
+        recursiveUpdateTest(new CompactHashMap<>());
+        recursiveUpdateTest(new ConcurrentCompactHashMap<>());
+        recursiveUpdateTest(new ConcurrentCompactHashMap<>(0, 1));
+        for (int size=1; size<5000; size+=size+1){
+            robinHoodTest(size, false);
+            robinHoodTest(size, true);
+            cachedHashTest(size);
+        }
+
+        for (int size=1; size<300; size+=7){
+            cursorTest(size);
+            replaceAllRemovalTest(size);
+            iteratorTest(size);
+            if (size < 100){
+                for (Supplier<Map<Collider, Integer>> factory : collidingMaps())
+                    collidingIteratorTest(factory, size);
+                collidingCursorTest(size);
+                collidingIteratorTest(SwissCompactHashMap::new, size);
+                collidingIteratorTest(IncrementalCompactHashMap::new, size);
+            }
+            removeIfTest(size);
+            swissOpsTest(size);
+            primitiveTest(size);
+            offHeapTest(size);
+            frozenTest(size);
+            cowSnapshotTest(size);
+            pagedTest(size);
+            incrementalTest(size);
+        }
+        swissTest(n);
+        snapshotTest(n);
+        bulkLoadTest(n);
+        compactSerializationTest(n);
+        frozenTest(n * 100);
+        cowSnapshotTest(n * 20);
+        pagedTest(n * 200);
+        pagedCollisionTest(20000);
+        incrementalTest(n * 100);
     }  
 
     private static void assertEquals(Object actual, Object expected){
@@ -105,6 +164,871 @@ public class CTests {
     }
 
 
+    private static Map<String, Long> computeTest(Map<String, Long> map, int n) {
+        for (int i=0; i<n; i++){
+            String k = String.valueOf(i % 257);
+            map.merge(k, 1L, Long::sum);
+            map.computeIfAbsent(k+"a", x -> (long) x.length());
+            map.compute(k+"b", (x, v) -> v == null ? Long.valueOf(1) : (v & 1) == 0 ? null : Long.valueOf(v+1));//add, grow, remove cycle
+            map.computeIfPresent(String.valueOf(i % 13), (x, v) -> v > 10 ? null : v);
+        }
+        assertEquals(map.computeIfAbsent("none", x -> null), null);
+        assertEquals(map.containsKey("none"), false);
+        assertEquals(map.merge("1a", 1L, (a, b) -> null), null);
+        assertEquals(map.containsKey("1a"), false);
+        assertEquals(map.computeIfPresent("none", (x, v) -> 1L), null);
+        return map;
+    }
+
+    private static Map<Long, String> forEachTest(Map<Long, String> map) {
+        long[] sum = {0};
+        map.forEach((k, v) -> sum[0] += k - p2(Long.parseLong(v)));
+        assertEquals(sum[0], 0L);
+
+        map.replaceAll((k, v) -> v + '-' + k);
+        map.forEach((k, v) -> assertEquals(v.endsWith("-" + k), true));
+        return map;
+    }
+
+    private static void replaceAllRemovalTest(int size) {
+        java.util.Random r = new java.util.Random(size);
+        CompactHashMap<Integer, Integer> map = new CompactHashMap<>();
+        while (map.size() < size){
+            int k = r.nextInt(size * 2);
+            map.put(k, k);
+        }
+        map.replaceAll((k, v) -> {
+            if ((k & 3) == 0)
+                map.remove(k);//shifts the entries back into the slot being replaced
+            return -k - 1;
+        });
+        map.forEach((k, v) -> assertEquals(v.equals(k) || v == -k - 1, true));//never the value of another key
+    }
+
+    private static void cursorTest(int size) {
+        java.util.Random r = new java.util.Random(size);
+        CompactHashMap<Integer, Integer> map = new CompactHashMap<>();
+        while (map.size() < size){
+            int k = r.nextInt();
+            map.put(k, ~k);
+        }
+        HashMap<Integer, Integer> expected = new HashMap<>(map);
+        java.util.HashSet<Integer> seen = new java.util.HashSet<>();
+        for (MapCursor<Integer, Integer> c = map.cursor(); c.advance();){
+            assertEquals(seen.add(c.key()), true);//each key exactly once, even if entries wrap around the table
+            assertEquals(c.value(), ~c.key());
+            if ((c.key() & 3) == 0)
+                c.remove();
+            else
+                c.setValue(c.key());
+        }
+        assertEquals(seen, expected.keySet());
+        expected.keySet().removeIf(k -> (k & 3) == 0);
+        expected.replaceAll((k, v) -> k);
+        assertEquals(map, expected);
+    }
+
+    private static void iteratorTest(int size) {
+        java.util.Random r = new java.util.Random(~size);
+        CompactHashMap<Integer, Integer> map = new CompactHashMap<>();
+        while (map.size() < size){
+            int k = r.nextInt();
+            map.put(k, ~k);
+        }
+        HashMap<Integer, Integer> expected = new HashMap<>(map);
+        Object[] table = map.table;
+        java.util.HashSet<Integer> seen = new java.util.HashSet<>();
+        for (Iterator<Map.Entry<Integer, Integer>> i = map.entrySet().iterator(); i.hasNext();){
+            Map.Entry<Integer, Integer> e = i.next();
+            assertEquals(seen.add(e.getKey()), true);
+            if ((e.getKey() & 1) == 0)
+                i.remove();
+            else
+                e.setValue(e.getKey());
+        }
+        assertEquals(map.table == table, true);//removed in place
+        assertEquals(seen, expected.keySet());
+        expected.entrySet().removeIf(e -> (e.getKey() & 1) == 0);
+        expected.replaceAll((k, v) -> k);
+        assertEquals(map, expected);
+    }
+
+    private static final class Collider{//few distinct hash codes: long clusters, wrapping around the table
+        final int id, hash;
+        Collider(int id, int buckets){this.id = id; this.hash = id % buckets;}
+        @Override public int hashCode() {return hash;}
+        @Override public boolean equals(Object o) {return o instanceof Collider && ((Collider) o).id == id;}
+        @Override public String toString() {return "K" + id;}
+    }
+
+    private static java.util.List<Supplier<Map<Collider, Integer>>> collidingMaps() {
+        return java.util.Arrays.asList(
+            CompactHashMap::new,
+            () -> {CompactHashMap<Collider, Integer> m = new CompactHashMap<>(); m.setRobinHood(true); return m;},
+            () -> {CompactHashMap<Collider, Integer> m = new CompactHashMap<>(); m.setCacheHashes(true); return m;},
+            () -> new CompactHashMap<>(0, GrowthPolicy.Preset.LOOKUP),
+            () -> new CompactHashMap<>(0, GrowthPolicy.Preset.COMPACT)
+        );
+    }
+
+    /**
+     * Removes random entries through the iterator of a map full of colliding keys
+     */
+    private static void collidingIteratorTest(Supplier<Map<Collider, Integer>> factory, int size) {
+        java.util.Random r = new java.util.Random(size);
+        for (int buckets = 1; buckets <= 6; buckets++){
+            for (int round = 0; round < 8; round++){
+                Map<Collider, Integer> map = factory.get();
+                HashMap<Collider, Integer> expected = new HashMap<>();
+                for (int i=0; i<size * 2; i++){
+                    Collider k = new Collider(r.nextInt(size * 2), buckets);
+                    if (r.nextInt(3) == 0)
+                        assertEquals(map.remove(k), expected.remove(k));
+                    else
+                        assertEquals(map.put(k, k.id), expected.put(k, k.id));
+                }
+                java.util.HashSet<Collider> seen = new java.util.HashSet<>();
+                for (Iterator<Collider> i = map.keySet().iterator(); i.hasNext();){
+                    Collider k = i.next();
+                    assertEquals(seen.add(k), true);//each key exactly once
+                    if (r.nextBoolean()){
+                        i.remove();
+                        expected.remove(k);
+                    }
+                }
+                assertEquals(expected.keySet().stream().allMatch(seen::contains), true);
+                assertEquals(map, expected);
+            }
+        }
+    }
+
+    private static void collidingCursorTest(int size) {
+        java.util.Random r = new java.util.Random(~size);
+        for (int buckets = 1; buckets <= 6; buckets++){
+            for (int round = 0; round < 8; round++){
+                CompactHashMap<Collider, Integer> map = new CompactHashMap<>();
+                map.setRobinHood((round & 1) != 0);
+                HashMap<Collider, Integer> expected = new HashMap<>();
+                while (map.size() < size){
+                    Collider k = new Collider(r.nextInt(size * 2), buckets);
+                    map.put(k, k.id);
+                    expected.put(k, k.id);
+                }
+                java.util.HashSet<Collider> seen = new java.util.HashSet<>();
+                for (MapCursor<Collider, Integer> c = map.cursor(); c.advance();){
+                    assertEquals(seen.add(c.key()), true);//each key exactly once, even if entries wrap around the table
+                    if (r.nextBoolean()){
+                        expected.remove(c.key());
+                        c.remove();
+                    } else{
+                        c.setValue(-c.key().id);
+                        expected.put(c.key(), -c.key().id);
+                    }
+                }
+                assertEquals(expected.keySet().stream().allMatch(seen::contains), true);
+                assertEquals(map, expected);
+            }
+        }
+    }
+
+    private static void recursiveUpdateTest(Map<String, Integer> map) {//the functions update the map themselves
+        assertEquals(map.computeIfAbsent("k", x -> {map.put(x, 1); return 2;}), 2);
+        assertEquals(map.compute("k", (x, v) -> {map.remove(x); return v + 1;}), 3);
+        assertEquals(map.compute("k", (x, v) -> {map.put("other", 0); return null;}), null);
+        for (int i=0; i<64; i++){//resized meanwhile
+            final int n = i;
+            map.computeIfAbsent("a" + i, x -> {map.put("b" + n, n); return n;});
+        }
+        HashMap<String, Integer> expected = new HashMap<>();
+        expected.put("other", 0);
+        for (int i=0; i<64; i++){
+            expected.put("a" + i, i);
+            expected.put("b" + i, i);
+        }
+        assertEquals(map, expected);
+        assertEquals(map.size(), expected.size());
+    }
+
+    private static void removeIfTest(int size) {
+        java.util.Random r = new java.util.Random(size * 31);
+        CompactHashMap<Integer, Integer> map = new CompactHashMap<>();
+        while (map.size() < size){
+            int k = r.nextInt();
+            map.put(k, ~k);
+        }
+        HashMap<Integer, Integer> expected = new HashMap<>(map);
+
+        assertEquals(map.keySet().removeIf(k -> k % 3 == 0), expected.keySet().removeIf(k -> k % 3 == 0));
+        assertEquals(map, expected);
+        assertEquals(map.values().removeIf(v -> v % 5 == 0), expected.values().removeIf(v -> v % 5 == 0));
+        assertEquals(map, expected);
+        assertEquals(map.entrySet().removeIf(e -> e.getKey() % 7 == 0), expected.entrySet().removeIf(e -> e.getKey() % 7 == 0));
+        assertEquals(map, expected);
+
+        java.util.List<Integer> keys = new java.util.ArrayList<>(expected.keySet()).subList(0, expected.size() / 2);
+        assertEquals(map.keySet().retainAll(keys), expected.keySet().retainAll(keys));
+        assertEquals(map, expected);
+        keys = new java.util.ArrayList<>(expected.keySet()).subList(0, expected.size() / 3);
+        assertEquals(map.keySet().removeAll(keys), expected.keySet().removeAll(keys));
+        assertEquals(map, expected);
+        for (Integer k : expected.keySet())
+            assertEquals(map.get(k), expected.get(k));//reachable after the compaction
+    }
+
+    private static void spliteratorTest(Map<Long, String> map) {
+        long keys = map.keySet().stream().mapToLong(Long::longValue).sum();
+        assertEquals(map.keySet().parallelStream().mapToLong(Long::longValue).sum(), keys);
+        assertEquals(map.entrySet().parallelStream().mapToLong(Map.Entry::getKey).sum(), keys);
+        assertEquals(map.values().parallelStream().mapToLong(v -> p2(Long.parseLong(v))).sum(), keys);
+        assertEquals(map.keySet().parallelStream().count(), (long) map.size());
+
+        java.util.Spliterator<Long> s = map.keySet().spliterator();
+        assertEquals(s.hasCharacteristics(java.util.Spliterator.SIZED | java.util.Spliterator.DISTINCT | java.util.Spliterator.NONNULL), true);
+        assertEquals(s.getExactSizeIfKnown(), (long) map.size());
+        java.util.Spliterator<Long> prefix = s.trySplit();
+        long[] sum = {0};
+        prefix.forEachRemaining(k -> sum[0] += k);
+        while (s.tryAdvance(k -> sum[0] += k));
+        assertEquals(sum[0], keys);
+        assertEquals(map.values().spliterator().hasCharacteristics(java.util.Spliterator.DISTINCT), false);
+    }
+
+    private static void bulkTest(Map<Long, String> m, long threshold) {
+        CompactHashMap<Long, String> map = (CompactHashMap<Long, String>) m;
+        java.util.concurrent.atomic.LongAdder sum = new java.util.concurrent.atomic.LongAdder();
+        map.forEach(threshold, (k, v) -> sum.add(k));
+        long keys = map.keySet().stream().mapToLong(Long::longValue).sum();
+        assertEquals(sum.sum(), keys);
+
+        assertEquals(map.search(threshold, (k, v) -> k == p2(17) ? v : null), "17");
+        assertEquals(map.search(threshold, (k, v) -> null), null);
+        assertEquals(map.reduceValues(threshold, (a, b) -> a.length() >= b.length() && a.compareTo(b) > 0 ? a : b), String.valueOf(map.size() - 1));
+        assertEquals(map.reduceEntries(threshold, (a, b) -> a.getKey() > b.getKey() ? a : b).getKey(), p2(map.size() - 1));
+        assertEquals(new CompactHashMap<Long, String>().reduceValues(threshold, (a, b) -> a), null);
+    }
+
+    private static void shrinkTest(boolean auto) {
+        CompactHashMap<Long, String> map = new CompactHashMap<>();
+        map.setAutoShrink(auto);
+        fillUp(map, 20000);
+        final int peak = map.table.length;
+        Map<Long, String> expected = new HashMap<>(map);
+        for (long i=10; i<20000; i++){
+            assertEquals(map.remove(i*i), expected.remove(i*i));
+        }
+        assertEquals(map.table.length < peak, auto);
+        map.trimToSize();
+        assertEquals(map.table.length, 32);//10 elements, .66 fill
+        assertEquals(map, expected);
+
+        fillUp(map, 20000);
+        map.keySet().removeIf(k -> k > 0);
+        assertEquals(map.table.length <= 32, auto);
+        map.remove(0L);
+        assertEquals(map.table.length == 0, auto);
+        map.trimToSize();
+        assertEquals(map.table.length, 0);
+        assertEquals(map.isEmpty(), true);
+    }
+
+    private static void presizeTest(int n) {
+        for (int size=0; size<=n; size+=size+1){
+            CompactHashMap<Long, String> map = new CompactHashMap<>(size);
+            Object[] table = map.table;
+            fillUp(map, size);
+            assertEquals(map.table == table, true);//no resize
+
+            CompactHashMap<Long, String> other = new CompactHashMap<>();
+            other.ensureCapacity(size);
+            table = other.table;
+            fillUp(other, size);
+            assertEquals(other.table == table, true);
+            assertEquals(new CompactHashMap<>(map), map);
+        }
+        CompactHashMap<Long, String> map = new CompactHashMap<>(newMap(n, HashMap::new));
+        Object[] table = map.table;
+        map.ensureCapacity(n >> 1);
+        assertEquals(map.table == table, true);
+        assertEquals(map, newMap(n, HashMap::new));
+    }
+
+    private static void growthTest(GrowthPolicy policy, int n) {
+        Map<Long, String> map = newMap(n, () -> new CompactHashMap<>(0, policy));
+        CompactHashMap<Long, String> compact = (CompactHashMap<Long, String>) map;
+        assertEquals(compact.getGrowthPolicy(), policy);
+        int capacity = compact.table.length >> 1;
+        assertEquals(policy.needGrow(capacity, n) || capacity < n, false);
+        assertEquals(policy.needGrow(capacity >> 1, n) || capacity >> 1 < n, true);//smallest one
+
+        testMap(map, n);
+        assertEquals(computeTest(new CompactHashMap<>(0, policy), n), computeTest(new HashMap<>(), n));
+    }
+
+    private static void strategyTest() {
+        CompactHashMap<String, Integer> ci = new CompactHashMap<>(HashingStrategy.caseInsensitive());
+        for (int i=0; i<500; i++){
+            ci.merge("Key" + i, 1, Integer::sum);
+            ci.merge("kEY" + i, 1, Integer::sum);
+        }
+        assertEquals(ci.size(), 500);
+        assertEquals(ci.get("KEY7"), 2);
+        assertEquals(ci.remove("key499"), 2);
+        assertEquals(ci.containsKey("Key499"), false);
+        assertEquals(ci.equals(ci.clone()), true);
+        assertEquals(ci.hashCode(), ci.clone().hashCode());
+
+        CompactHashMap<byte[], String> bytes = new CompactHashMap<>(HashingStrategy.byteArray());
+        for (int i=0; i<300; i++){
+            bytes.put(String.valueOf(i).getBytes(), String.valueOf(i));
+        }
+        assertEquals(bytes.get("42".getBytes()), "42");
+        assertEquals(bytes.put("42".getBytes(), "x"), "42");
+        assertEquals(bytes.size(), 300);
+
+        CompactHashMap<String, Integer> identity = new CompactHashMap<>(HashingStrategy.identity());
+        String a = "a", b = new String(a);
+        identity.put(a, 1);
+        identity.put(b, 2);
+        assertEquals(identity.size(), 2);
+        assertEquals(identity.get(a), 1);
+        assertEquals(identity.get(b), 2);
+        assertEquals(identity.get("a" + b.length()), null);
+        identity.remove(b);
+        assertEquals(identity.containsKey(b) || !identity.containsKey(a), false);
+    }
+
+    private static void robinHoodTest(int maxSize, boolean cacheHashes) {
+        java.util.Random r = new java.util.Random(maxSize);
+        CompactHashMap<Integer, Integer> map = new CompactHashMap<>();
+        map.setRobinHood(true);
+        map.setCacheHashes(cacheHashes);
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        for (int i=0; i<maxSize * 20; i++){
+            int k = r.nextInt(maxSize * 3);
+            switch (r.nextInt(6)){
+                case 0: assertEquals(map.remove(k), expected.remove(k)); break;
+                case 1: assertEquals(map.merge(k, 1, Integer::sum), expected.merge(k, 1, Integer::sum)); break;
+                case 2: assertEquals(map.computeIfPresent(k, (x, v) -> v > 1 ? null : v + 1), expected.computeIfPresent(k, (x, v) -> v > 1 ? null : v + 1)); break;
+                default:
+                    assertEquals(map.put(k, k), expected.put(k, k));
+            }
+            if (map.size() > maxSize){
+                Iterator<Integer> it = map.keySet().iterator();
+                expected.remove(it.next());
+                it.remove();
+            }
+        }
+        assertEquals(map, expected);
+        for (int k=0; k<maxSize * 3; k++){
+            assertEquals(map.get(k), expected.get(k));//hits and early misses
+        }
+        map.keySet().removeIf(k -> (k & 1) == 0);
+        expected.keySet().removeIf(k -> (k & 1) == 0);
+        map.setRobinHood(false);
+        assertEquals(map, expected);
+        map.setRobinHood(true);
+        for (int k=0; k<maxSize * 3; k++){
+            assertEquals(map.get(k), expected.get(k));
+        }
+    }
+
+    private static void cachedHashTest(int maxSize) {
+        final int[] hashCodes = {0};
+        class Key{//expensive hashCode, counted
+            final int id;
+            Key(int id){this.id = id;}
+            @Override public int hashCode() {hashCodes[0]++; return id * 31;}
+            @Override public boolean equals(Object o) {return o instanceof Key && ((Key) o).id == id;}
+        }
+        CompactHashMap<Key, Integer> map = new CompactHashMap<>();
+        map.setCacheHashes(true);
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        java.util.Random r = new java.util.Random(maxSize);
+        for (int i=0; i<maxSize * 10; i++){
+            int k = r.nextInt(maxSize * 2);
+            if (r.nextInt(3) == 0)
+                assertEquals(map.remove(new Key(k)), expected.remove(k));
+            else
+                assertEquals(map.merge(new Key(k), 1, Integer::sum), expected.merge(k, 1, Integer::sum));
+        }
+        for (Iterator<Key> i = map.keySet().iterator(); i.hasNext();){
+            Key k = i.next();
+            if ((k.id & 7) == 0){
+                i.remove();
+                expected.remove(k.id);
+            }
+        }
+        map.values().removeIf(v -> v > 7);
+        expected.values().removeIf(v -> v > 7);
+
+        hashCodes[0] = 0;
+        map.ensureCapacity(map.size() * 8);//rehash
+        map.trimToSize();
+        assertEquals(hashCodes[0], 0);
+
+        assertEquals(map.size(), expected.size());
+        for (int k=0; k<maxSize * 2; k++){
+            assertEquals(map.get(new Key(k)), expected.get(k));
+        }
+        CompactHashMap<Key, Integer> clone = map.clone();
+        map.clear();
+        assertEquals(clone.size(), expected.size());
+        clone.setCacheHashes(false);
+        for (int k=0; k<maxSize * 2; k++){
+            assertEquals(clone.get(new Key(k)), expected.get(k));
+        }
+    }
+
+    private static void swissTest(int n) {
+        Map<Long, String> swiss = newMap(n, SwissCompactHashMap::new);
+        assertEquals(swiss, newMap(n, HashMap::new));
+        assertEquals(forEachTest(swiss), forEachTest(newMap(n, HashMap::new)));
+        assertEquals(((SwissCompactHashMap<Long, String>) swiss).clone(), swiss);
+        testMap(newMap(n, SwissCompactHashMap::new), n);
+        testIteratorRemove(newMap(n, SwissCompactHashMap::new), n);
+        assertEquals(lowSize(new SwissCompactHashMap<>()), lowSize(new HashMap<>()));
+        evenLower(new SwissCompactHashMap<>());
+        emptyTest(new SwissCompactHashMap<>());
+        assertEquals(computeTest(new SwissCompactHashMap<>(), 2017), computeTest(new HashMap<>(), 2017));
+    }
+
+    private static void swissOpsTest(int maxSize) {
+        java.util.Random r = new java.util.Random(maxSize);
+        SwissCompactHashMap<Long, Integer> map = new SwissCompactHashMap<>();
+        HashMap<Long, Integer> expected = new HashMap<>();
+        for (int i=0; i<maxSize * 8; i++){
+            int x = r.nextInt(maxSize);
+            long k = (x & 7) == 0 ? (long) x << 32 | x : x;//Long.hashCode() is zero: same home slot and fragment
+            if (r.nextInt(3) == 0)
+                assertEquals(map.remove(k), expected.remove(k));
+            else
+                assertEquals(map.put(k, i), expected.put(k, i));
+        }
+        assertEquals(map, expected);
+        for (Long k : expected.keySet())
+            assertEquals(map.get(k), expected.get(k));
+
+        java.util.HashSet<Long> seen = new java.util.HashSet<>();
+        for (Iterator<Map.Entry<Long, Integer>> i = map.entrySet().iterator(); i.hasNext();){
+            Map.Entry<Long, Integer> e = i.next();
+            assertEquals(seen.add(e.getKey()), true);//each key exactly once, even if entries wrap around the table
+            if ((e.getKey() & 1) == 0)
+                i.remove();
+            else
+                e.setValue(-1);
+        }
+        assertEquals(seen, expected.keySet());
+        expected.keySet().removeIf(k -> (k & 1) == 0);
+        expected.replaceAll((k, v) -> -1);
+        assertEquals(map, expected);
+        for (Long k : seen)
+            assertEquals(map.get(k), expected.get(k));
+    }
+
+    private static void primitiveTest(int maxSize) {
+        java.util.Random r = new java.util.Random(maxSize);
+        IntObjCompactMap<Integer> intObj = new IntObjCompactMap<>();
+        LongObjCompactMap<Integer> longObj = new LongObjCompactMap<>();
+        ObjIntCompactMap<Long> objInt = new ObjIntCompactMap<>();
+        ObjLongCompactMap<Long> objLong = new ObjLongCompactMap<>();
+        HashMap<Long, Integer> expected = new HashMap<>();
+        for (int i=0; i<maxSize * 8; i++){
+            int x = r.nextInt(maxSize) - maxSize / 4;//zero and negative keys included
+            long k = x;
+            if (r.nextInt(3) == 0){
+                Integer v = expected.remove(k);
+                assertEquals(intObj.remove(x), v);
+                assertEquals(longObj.remove(k), v);
+                assertEquals(objInt.remove(k), v == null ? 0 : v.intValue());
+                assertEquals(objLong.remove(k), v == null ? 0L : v.longValue());
+            } else {
+                Integer v = expected.put(k, i);
+                assertEquals(intObj.put(x, i), v);
+                assertEquals(longObj.put(k, i), v);
+                assertEquals(objInt.put(k, i), v == null ? 0 : v.intValue());
+                assertEquals(objLong.put(k, i), v == null ? 0L : v.longValue());
+            }
+        }
+        for (long k = -maxSize; k < maxSize; k++){
+            Integer v = expected.get(k);
+            assertEquals(intObj.get((int) k), v);
+            assertEquals(longObj.get(k), v);
+            assertEquals(objInt.getOrDefault(k, -1), v == null ? -1 : v.intValue());
+            assertEquals(objLong.containsKey(k), v != null);
+        }
+        assertEquals(intObj.size(), expected.size());
+        assertEquals(objLong.size(), expected.size());
+
+        HashMap<Long, Integer> seen = new HashMap<>();
+        intObj.forEach((k, v) -> assertEquals(seen.put((long) k, v), null));
+        assertEquals(seen, expected);
+        seen.clear();
+        objLong.forEach((k, v) -> seen.put(k, (int) v));
+        assertEquals(seen, expected);
+        assertEquals(longObj.hashCode(), expected.hashCode());
+        assertEquals(objInt.hashCode(), expected.hashCode());
+        assertEquals(objInt.clone(), objInt);
+        assertEquals(intObj.clone(), intObj);
+
+        for (Long k : expected.keySet())
+            objInt.addTo(k, 1);
+        objInt.addTo(Long.MIN_VALUE, 7);
+        assertEquals(objInt.get(Long.MIN_VALUE), 7);
+        expected.forEach((k, v) -> assertEquals(objInt.get(k), v + 1));
+    }
+
+    private static void offHeapTest(int maxSize) {
+        java.util.Random r = new java.util.Random(maxSize);
+        OffHeapCompactMap<String, String> map = new OffHeapCompactMap<>(Codec.utf8(), Codec.utf8());
+        OffHeapCompactMap<Long, Long> fixed = new OffHeapCompactMap<>(Codec.int64(), Codec.int64());
+        HashMap<String, String> expected = new HashMap<>();
+        for (int i=0; i<maxSize * 16; i++){
+            int x = r.nextInt(maxSize);
+            String k = "k\u00e9\u20ac" + x;//multi-byte chars
+            if (r.nextInt(3) == 0){
+                assertEquals(map.remove(k), expected.remove(k));
+                fixed.remove((long) x);
+            } else {
+                String v = (i + "ab").substring(r.nextInt(3));//values of varying length, in place or relocated
+                assertEquals(map.put(k, v), expected.put(k, v));
+                fixed.put((long) x, (long) ~i);
+            }
+        }
+        map.compact();
+        assertEquals(map.size(), expected.size());
+        assertEquals(fixed.size(), expected.size());
+        for (int x=0; x<maxSize; x++){
+            String k = "k\u00e9\u20ac" + x;
+            assertEquals(map.get(k), expected.get(k));
+            assertEquals(fixed.containsKey((long) x), expected.containsKey(k));
+        }
+        HashMap<String, String> seen = new HashMap<>();
+        map.forEach((k, v) -> assertEquals(seen.put(k, v), null));
+        assertEquals(seen, expected);
+        map.clear();
+        assertEquals(map.offHeapSize(), 0L);
+        assertEquals(map.get("k"), null);
+    }
+
+    private static void snapshotTest(int n) {
+        java.nio.file.Path file = null;
+        try{
+            file = java.nio.file.Files.createTempFile("compact", ".snapshot");
+            OffHeapCompactMap<String, Long> map = new OffHeapCompactMap<>(Codec.utf8(), Codec.int64());
+            Map<Long, String> expected = newMap(n, HashMap::new);
+            expected.forEach((k, v) -> map.put(v, k));
+            map.remove("0");
+            map.put("1", -1L);
+            map.writeSnapshot(file);
+
+            OffHeapCompactMap<String, Long> mapped = OffHeapCompactMap.openSnapshot(file, Codec.utf8(), Codec.int64());
+            assertEquals(mapped.isReadOnly(), true);
+            assertEquals(mapped.size(), map.size());
+            assertEquals(mapped.toString(), map.toString());//the same layout, the same order
+            for (long i=0; i<n; i++)
+                assertEquals(mapped.get(String.valueOf(i)), map.get(String.valueOf(i)));
+            assertEquals(mapped.get("none"), null);
+            try{
+                mapped.put("x", 1L);
+                throw new AssertionError("read-only");
+            }catch (UnsupportedOperationException _expected) {
+            }
+            try{
+                OffHeapCompactMap.openSnapshot(file, Codec.utf8(), Codec.utf8());
+                throw new AssertionError("width mismatch");
+            }catch (IllegalArgumentException _expected) {
+            }
+
+            new OffHeapCompactMap<>(Codec.int64(), Codec.int64()).writeSnapshot(file);
+            assertEquals(OffHeapCompactMap.openSnapshot(file, Codec.int64(), Codec.int64()).get(1L), null);
+        }catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }finally{
+            if (file != null)
+                file.toFile().delete();
+        }
+    }
+
+    private static void bulkLoadTest(int n) {
+        Map<Long, String> expected = newMap(n, HashMap::new);
+        for (int mode=0; mode<4; mode++){
+            CompactHashMap<Long, String> map = new CompactHashMap<>(expected);
+            map.setRobinHood((mode & 1) != 0);
+            map.setCacheHashes((mode & 2) != 0);
+            for (long i=0; i<n; i+=3)
+                map.remove(i*i);//sparse table, no clone of it
+            HashMap<Long, String> sparse = new HashMap<>(map);
+            CompactHashMap<Long, String> copy = serialCopy(map);
+            assertEquals(copy, sparse);
+            assertEquals(copy.isRobinHood(), map.isRobinHood());
+            CompactHashMap<Long, String> loaded = new CompactHashMap<>();
+            loaded.setRobinHood((mode & 1) == 0);
+            loaded.setCacheHashes((mode & 2) == 0);
+            loaded.putAll(map);
+            assertEquals(loaded, sparse);
+            for (Long k : sparse.keySet()){//probes as usual after the bulk load
+                assertEquals(copy.get(k), sparse.get(k));
+                assertEquals(loaded.remove(k), sparse.get(k));
+            }
+            assertEquals(loaded.isEmpty(), true);
+        }
+        HashMap<Long, String> nulls = new HashMap<>(expected);
+        nulls.put(null, "null");
+        CompactHashMap<Long, String> map = new CompactHashMap<>();
+        try{
+            map.putAll(nulls);
+            throw new AssertionError("null key");
+        }catch (NullPointerException _expected) {
+        }
+        assertEquals(map.isEmpty(), true);
+    }
+
+    private static void compactSerializationTest(int n) {
+        CompactHashMap<Object, Object> map = new CompactHashMap<>();
+        for (int i=0; i<n; i++){
+            map.put("s" + i, i);
+            map.put((long) i, i * 0.5);
+            map.put(i, (i & 1) == 0);
+        }
+        map.put(URI.create("sss://x"), new String(new char[30000]).replace('\0', 'x'));//generic and too long for writeUTF
+        map.put("\u0000\u20ac\ud83d\ude00", Long.MIN_VALUE);
+        int standard = serialSize(map);
+        map.setCompactSerialization(true);
+        int compact = serialSize(map);
+        assertEquals(compact < standard, true);
+
+        CompactHashMap<Object, Object> copy = serialCopy(map);
+        assertEquals(copy, map);
+        assertEquals(copy.isCompactSerialization(), true);
+        for (int i=0; i<n; i++)
+            assertEquals(copy.get((long) i), i * 0.5);
+
+        CompactHashMap<String, Long> uniform = new CompactHashMap<>();//a single tag per column
+        for (long i=-n; i<n; i++)
+            uniform.put(String.valueOf(i), i * i * i);
+        uniform.put("max", Long.MAX_VALUE);
+        standard = serialSize(uniform);
+        uniform.setCompactSerialization(true);
+        assertEquals(serialSize(uniform) < standard * 2 / 3, true);
+        assertEquals(serialCopy(uniform), uniform);
+    }
+
+    private static void frozenTest(int n) {
+        Map<Long, String> expected = newMap(n, HashMap::new);
+        ImmutableCompactMap<Long, String> frozen = new CompactHashMap<>(expected).freeze();
+        assertEquals(frozen, expected);
+        assertEquals(expected, frozen);
+        assertEquals(frozen.hashCode(), expected.hashCode());
+        assertEquals(frozen.getLongestProbe() <= Math.max(4, 32 - Integer.numberOfLeadingZeros(n)), true);//~log n at worst
+        for (long i=-n; i<2L*n; i++)
+            assertEquals(frozen.get(i), expected.get(i));
+        assertEquals(ImmutableCompactMap.copyOf(frozen), frozen);
+        assertEquals(serialCopy(frozen), expected);
+        try{
+            frozen.put(-1L, "x");
+            throw new AssertionError("mutable");
+        }catch (UnsupportedOperationException _expected) {
+        }
+        if (n > 0){
+            Iterator<Long> i = frozen.keySet().iterator();
+            i.next();
+            try{
+                i.remove();
+                throw new AssertionError("mutable");
+            }catch (UnsupportedOperationException _expected) {
+            }
+        }
+        HashMap<String, Integer> mixedCase = new HashMap<>();
+        mixedCase.put("Key", 1);
+        mixedCase.put("Other", 2);
+        ImmutableCompactMap<String, Integer> ci = ImmutableCompactMap.copyOf(mixedCase, HashingStrategy.caseInsensitive());
+        assertEquals(ci.get("kEY"), 1);
+        assertEquals(ci.get("OTHER"), 2);
+        assertEquals(ci.get("K"), null);
+        assertEquals(ImmutableCompactMap.copyOf(new HashMap<>()).get("any"), null);
+
+        HashMap<String, Integer> dup = new HashMap<>();
+        for (int i=0; i<n; i++)
+            dup.put("Key" + i, i);
+        dup.put("kEY" + (n >> 1), -1);
+        try{
+            ImmutableCompactMap.copyOf(dup, HashingStrategy.caseInsensitive());
+            throw new AssertionError("duplicate key");
+        }catch (IllegalArgumentException _expected) {
+        }
+        assertEquals(ImmutableCompactMap.copyOf(dup).size(), n + 1);
+    }
+
+    private static void cowSnapshotTest(int maxSize) {
+        java.util.Random r = new java.util.Random(maxSize);
+        SnapshotCompactHashMap<Integer, Integer> map = new SnapshotCompactHashMap<>();
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        java.util.List<SnapshotCompactHashMap<Integer, Integer>> snapshots = new java.util.ArrayList<>();
+        java.util.List<Map<Integer, Integer>> contents = new java.util.ArrayList<>();
+        for (int i=0; i<maxSize * 8; i++){
+            Integer k = r.nextInt(maxSize * 2), v = r.nextInt();
+            if (r.nextInt(3) == 0)
+                assertEquals(map.remove(k), expected.remove(k));
+            else
+                assertEquals(map.put(k, v), expected.put(k, v));
+            if (r.nextInt(maxSize) == 0){
+                snapshots.add(map.snapshot());
+                contents.add(new HashMap<>(expected));
+            }
+        }
+        assertEquals(map, expected);
+        for (int i=0; i<snapshots.size(); i++){//unaffected by the later writes
+            assertEquals(snapshots.get(i), contents.get(i));
+        }
+        if (!snapshots.isEmpty()){//the snapshots are maps of their own
+            SnapshotCompactHashMap<Integer, Integer> s = snapshots.get(0);
+            Map<Integer, Integer> c = contents.get(0);
+            for (int i=0; i<maxSize; i++){
+                Integer k = r.nextInt(maxSize * 2);
+                assertEquals(s.remove(k), c.remove(k));
+                assertEquals(s.put(-k, k), c.put(-k, k));
+            }
+            assertEquals(s, c);
+            assertEquals(map, expected);
+        }
+        SnapshotCompactHashMap<Integer, Integer> before = map.clone();
+        for (Iterator<Map.Entry<Integer, Integer>> i = map.entrySet().iterator(); i.hasNext(); ){
+            Map.Entry<Integer, Integer> e = i.next();
+            if ((e.getKey() & 1) == 0)
+                i.remove();
+            else
+                e.setValue(-e.getValue());
+        }
+        expected.keySet().removeIf(k -> (k & 1) == 0);
+        expected.replaceAll((k, v) -> -v);
+        assertEquals(map, expected);
+        assertEquals(before.size() >= map.size(), true);
+        assertEquals(serialCopy(before), before);
+        assertEquals(new SnapshotCompactHashMap<>(expected), expected);
+    }
+
+    private static void pagedTest(int maxSize) {
+        java.util.Random r = new java.util.Random(maxSize);
+        PagedCompactHashMap<Integer, Integer> map = new PagedCompactHashMap<>();
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        for (int i=0; i<maxSize * 3; i++){//grows past many splits
+            Integer k = r.nextInt(maxSize * 2), v = r.nextInt();
+            if (r.nextInt(4) == 0)
+                assertEquals(map.remove(k), expected.remove(k));
+            else
+                assertEquals(map.put(k, v), expected.put(k, v));
+            if (r.nextInt(16) == 0)
+                assertEquals(map.get(v), expected.get(v));
+        }
+        assertEquals(map, expected);
+        assertEquals(expected, map);
+        assertEquals(map.size(), expected.size());
+        for (Integer k : expected.keySet())
+            assertEquals(map.containsKey(k), true);
+
+        PagedCompactHashMap<Integer, Integer> copy = map.clone();
+        for (Iterator<Map.Entry<Integer, Integer>> i = map.entrySet().iterator(); i.hasNext(); ){
+            Map.Entry<Integer, Integer> e = i.next();
+            if ((e.getKey() & 1) == 0)
+                i.remove();
+            else
+                e.setValue(-e.getValue());
+        }
+        HashMap<Integer, Integer> original = new HashMap<>(expected);
+        expected.keySet().removeIf(k -> (k & 1) == 0);
+        expected.replaceAll((k, v) -> -v);
+        assertEquals(map, expected);
+        assertEquals(copy, original);
+        assertEquals(serialCopy(copy), original);
+        assertEquals(new PagedCompactHashMap<>(original), original);
+        for (Integer k : original.keySet())
+            copy.remove(k);
+        assertEquals(copy.isEmpty(), true);
+    }
+
+    private static void pagedCollisionTest(int size) {//equal hash codes, the page cannot be split
+        PagedCompactHashMap<String, Integer> map = new PagedCompactHashMap<>();
+        HashMap<String, Integer> expected = new HashMap<>();
+        for (int i=0; i<size; i++){
+            StringBuilder b = new StringBuilder();
+            for (int bits = i | 1 << 15; bits > 1; bits >>>= 1)
+                b.append((bits & 1) == 0 ? "Aa" : "BB");
+            String k = b.toString();
+            assertEquals(map.put(k, i), expected.put(k, i));
+        }
+        assertEquals(map.size(), size);
+        assertEquals(map, expected);
+        for (String k : expected.keySet())
+            assertEquals(map.remove(k), expected.get(k));
+        assertEquals(map.isEmpty(), true);
+    }
+
+    private static void incrementalTest(int maxSize) {
+        java.util.Random r = new java.util.Random(maxSize);
+        IncrementalCompactHashMap<Integer, Integer> map = new IncrementalCompactHashMap<>();
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        int migrating = 0;
+        for (int i=0; i<maxSize * 4; i++){
+            Integer k = r.nextInt(maxSize * 2), v = r.nextInt();
+            if (r.nextInt(4) == 0)
+                assertEquals(map.remove(k), expected.remove(k));
+            else
+                assertEquals(map.put(k, v), expected.put(k, v));
+            assertEquals(map.get(v), expected.get(v));
+            if (map.old != null && migrating++ % 97 == 0){//reads, iteration and iterator removal over both tables
+                Object[] old = map.old;
+                assertEquals(map, expected);
+                for (Iterator<Map.Entry<Integer, Integer>> it = map.entrySet().iterator(); it.hasNext(); ){
+                    Map.Entry<Integer, Integer> e = it.next();
+                    if (r.nextInt(8) == 0){
+                        it.remove();
+                        expected.remove(e.getKey());
+                    } else if (r.nextInt(8) == 0){
+                        expected.put(e.getKey(), -e.getValue());
+                        e.setValue(-e.getValue());
+                    }
+                }
+                assertEquals(map.old, old);//no migration by the iterator
+                assertEquals(map, expected);
+                assertEquals(map.clone(), expected);
+            }
+        }
+        assertEquals(map, expected);
+        assertEquals(migrating > 0 || maxSize < 64, true);
+        assertEquals(serialCopy(map), expected);
+        assertEquals(new IncrementalCompactHashMap<>(expected), expected);
+        for (Integer k : new java.util.ArrayList<>(expected.keySet()))
+            assertEquals(map.remove(k), expected.get(k));
+        assertEquals(map.isEmpty(), true);
+    }
+
+    private static int serialSize(Object o) {
+        try{
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes)){
+                out.writeObject(o);
+            }
+            return bytes.size();
+        }catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T serialCopy(T o) {
+        try{
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes)){
+                out.writeObject(o);
+            }
+            try (java.io.ObjectInputStream in = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray()))){
+                return (T) in.readObject();
+            }
+        }catch (java.io.IOException | ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static Map<Long, String> newMap(int count, Supplier<Map<Long, String>> f){
         Map<Long, String> map = f.get();
         fillUp(map, count);
@@ -5,11 +5,15 @@ package bestsss.map;
 import java.math.BigDecimal;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
- *  Random test adding, removing and reading from {@link CompactHashMap} and {@link HashMap}, checking for equality 
+ *  Random test adding, removing and reading from {@link CompactHashMap} and {@link HashMap}, checking for equality.
+ *  The torture run shares a {@link ConcurrentCompactHashMap} (then a {@link StampedCompactHashMap}) among all the cores.
  * @author Stanimir Simeonoff
  */
 public class RndTest {
@@ -22,19 +26,26 @@ public class RndTest {
     }
     
 
-    if (Boolean.getBoolean("torture")){
-      runTorture();
+    if (Boolean.getBoolean("torture") || args.length > 0 && "torture".equals(args[0])){//-Dtorture=true or the torture argument
+      runTorture((int) 3.9e6, ConcurrentCompactHashMap::new);
+      runTorture((int) 3.9e6, StampedCompactHashMap::new);
     } else{
       timedRun((int)7.8e5, Integer.MAX_VALUE);
+      runTorture((int) 2e5, ConcurrentCompactHashMap::new);//short ones
+      runTorture((int) 2e5, StampedCompactHashMap::new);
     }
   }
 
-  private static void runTorture() {
-    int cores = Math.max(1,  Runtime.getRuntime().availableProcessors() -1);    
+  private static void runTorture(int iterations, java.util.function.Supplier<ConcurrentMap<Integer, Long>> factory) {
+    int cores = Math.max(2,  Runtime.getRuntime().availableProcessors() -1);
     ExecutorService e = java.util.concurrent.Executors.newFixedThreadPool(cores);
-    int iterations = (int) 3.9e6;
+    ConcurrentMap<Integer, Long> shared = factory.get();
+    ConcurrentMap<Integer, Long> counters = shared instanceof ConcurrentCompactHashMap ? new ConcurrentCompactHashMap<>(0, 2) : factory.get();//heavy contention
+    long nanos = -System.nanoTime();
+    List<Future<Map<Integer, Long>>> owned = new ArrayList<>();
     for (int i=0; i<cores; i++){
-      e.submit(() ->timedRun(iterations, 1 << 18));
+      final int thread = i;
+      owned.add(e.submit(() -> tortureRun(shared, counters, thread, cores, iterations)));
     }
     e.shutdown();
     
@@ -43,9 +54,63 @@ public class RndTest {
         System.err.println("failed torture");
         System.exit(-2);
       }
+      Map<Integer, Long> expected = new HashMap<>();
+      for (Future<Map<Integer, Long>> f : owned)
+        expected.putAll(f.get());//rethrows the failures
+      assertEquals(shared, expected);
+      long increments = 0;
+      for (Long v : counters.values())
+        increments += v;
+      assertEquals(increments, (long) iterations * cores);
     }catch (InterruptedException _ie) {
       Thread.currentThread().interrupt();
+    }catch (ExecutionException ex) {
+      throw new AssertionError(ex.getCause());
     }
+    nanos += System.nanoTime();
+    System.out.printf("Torture %s %.2fms; threads: %d, size: %d%n", shared.getClass().getSimpleName(), BigDecimal.valueOf(nanos, 6), cores, shared.size());
+  }
+
+  /**
+   * Each thread owns the keys with (key % threads == thread) and checks them against its own HashMap; 
+   * any key read has to map to its value. The counters are updated by all the threads.
+   */
+  private static Map<Integer, Long> tortureRun(ConcurrentMap<Integer, Long> c, ConcurrentMap<Integer, Long> counters, int thread, int threads, int iterations){
+    final int maxKey = Math.max(1, (1 << 16) / threads);
+    Map<Integer, Long> h = new HashMap<>();
+    Random r = new Random(thread);
+    for (int i=0; i< iterations; i++){
+      counters.merge(r.nextInt(64), 1L, Long::sum);
+      float f = r.nextFloat();
+      if (f < 0.6f){
+        int k = r.nextInt(maxKey * threads);
+        Long v = c.get(k);
+        if (v != null)
+          assertEquals(v, val(k));
+        if (k % threads == thread)
+          assertEquals(v, h.get(k));
+        if (f < 0.00005f)
+          c.forEach((key, value) -> assertEquals(value, val(key)));
+        continue;
+      }
+      int k = r.nextInt(maxKey) * threads + thread;
+      Long v = val(k);
+      if (f < 0.8f){
+        assertEquals(c.put(k, v), h.put(k, v));
+      } else if (f < 0.85f){
+        assertEquals(c.putIfAbsent(k, v), h.putIfAbsent(k, v));
+      } else if (f < 0.9f){
+        assertEquals(c.computeIfAbsent(k, x -> v), h.computeIfAbsent(k, x -> v));
+        assertEquals(c.compute(k, (x, old) -> (x & 1) == 0 ? null : v), h.compute(k, (x, old) -> (x & 1) == 0 ? null : v));
+      } else if (f < 0.95f){
+        assertEquals(c.remove(k, v), h.remove(k, v));
+      } else {
+        assertEquals(c.remove(k), h.remove(k));
+      }
+    }
+    for (Map.Entry<Integer, Long> e : h.entrySet())
+      assertEquals(c.get(e.getKey()), e.getValue());
+    return h;
   }
 
   private static void timedRun(int iterations, int maxSize) {